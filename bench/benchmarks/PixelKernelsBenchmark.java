@@ -0,0 +1,174 @@
+/*
+ * Benchmark JMH de los kernels de pixels, pixel a pixel y con la Vector API.
+ */
+package benchmarks;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import machine.PixelKernels;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compara PixelKernels con VectorPixelKernels en lo que se hace en cada
+ * frame: los 6144 bytes de la pantalla a pixels, la ampliación con scanlines
+ * o máscara RGB de una imagen de 320x240 (borde estándar), y las scanlines y
+ * la máscara sobre la imagen ya ampliada. La imagen tiene los colores del
+ * Spectrum en tramos de 8 pixels, con un cuarto de negro.
+ *
+ * Necesita Java 16 o posterior y las clases de la carpeta vector compiladas.
+ * Con kernels=vector y sin la Vector API, el setup falla.
+ *
+ * @author agent
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "--add-modules=jdk.incubator.vector")
+@State(Scope.Thread)
+public class PixelKernelsBenchmark {
+
+    private static final int WIDTH = 320;
+    private static final int HEIGHT = 240;
+    private static final int COLORS[] = {
+        0x000000, 0x0000c0, 0xc00000, 0xc000c0, 0x00c000, 0x00c0c0, 0xc0c000, 0xc0c0c0,
+        0x000000, 0x0000ff, 0xff0000, 0xff00ff, 0x00ff00, 0x00ffff, 0xffff00, 0xffffff
+    };
+    // Las máscaras de JSpeccyScreen.rgbMasks
+    private static final int MASKS[][][] = {
+        null,
+        null,
+        {
+            { 0xff0000, 0x00ff00 },
+            { 0x0000ff, 0xffffffff }
+        },
+        {
+            { 0xffffffff, 0x00ff00, 0x0000ff },
+            { 0x00ff00, 0xff0000, 0xffffffff },
+            { 0xffffffff, 0x0000ff, 0xff0000 }
+        },
+        {
+            { 0xff0000, 0xff0000, 0x00ff00, 0x00ff00 },
+            { 0xff0000, 0xff0000, 0x00ff00, 0x00ff00 },
+            { 0x0000ff, 0x0000ff, 0xffffffff, 0xffffffff },
+            { 0x0000ff, 0x0000ff, 0xffffffff, 0xffffffff }
+        }
+    };
+
+    @Param({"scalar", "vector"})
+    public String kernels;
+
+    @Param({"2", "3", "4"})
+    public int zoom;
+
+    private PixelKernels pixelKernels;
+    private final byte screen[] = new byte[6144];
+    private final int attrs[] = new int[6144];
+    private final int pixels[] = new int[256 * 192];
+    private final int frame[] = new int[WIDTH * HEIGHT];
+    private int zoomed[], smoothed[];
+
+    @Setup(Level.Trial)
+    public void setup() {
+        pixelKernels = "vector".equals(kernels)
+            ? PixelKernels.getVector() : PixelKernels.getScalar();
+        if (pixelKernels == null) {
+            throw new IllegalStateException("No Vector API: needs --add-modules jdk.incubator.vector");
+        }
+
+        Random random = new Random(zoom);
+        random.nextBytes(screen);
+        for (int addr = 0; addr < attrs.length; addr++) {
+            attrs[addr] = random.nextInt(256);
+        }
+
+        for (int pixel = 0; pixel < frame.length; pixel += 8) {
+            int color = random.nextInt(4) == 0 ? 0 : COLORS[random.nextInt(COLORS.length)];
+            for (int idx = 0; idx < 8; idx++) {
+                frame[pixel + idx] = color;
+            }
+        }
+
+        zoomed = new int[frame.length * zoom * zoom];
+        smoothed = new int[zoomed.length];
+        pixelKernels.zoomLine(frame, 0, smoothed, 0, frame.length, zoom,
+            PixelKernels.NO_SHADE, null);
+    }
+
+    @Benchmark
+    public int[] screenBytes() {
+        for (int addr = 0; addr < screen.length; addr++) {
+            int attr = attrs[addr];
+            pixelKernels.expandByte(pixels, addr << 3, screen[addr],
+                COLORS[attr & 0x07], COLORS[(attr >>> 3) & 0x07]);
+        }
+        return pixels;
+    }
+
+    @Benchmark
+    public int[] zoomScanlines() {
+        return zoomFrame(null);
+    }
+
+    @Benchmark
+    public int[] zoomRgb() {
+        return zoomFrame(MASKS[zoom]);
+    }
+
+    // Lo que hace JSpeccyScreen.filterFused con toda la imagen
+    private int[] zoomFrame(int masks[][]) {
+        int scanline = zoom == 4 ? 2 : 1;
+        int zoomedWidth = WIDTH * zoom;
+        for (int line = 0, dst = 0; line < HEIGHT; line++) {
+            for (int dy = 0; dy < zoom; dy++, dst += zoomedWidth) {
+                int shade = PixelKernels.NO_SHADE;
+                if (masks == null) {
+                    if (dy == scanline) {
+                        shade = PixelKernels.SHADE_LINE_1;
+                    } else if (dy == scanline + 1) {
+                        shade = PixelKernels.SHADE_LINE_2;
+                    }
+                }
+                pixelKernels.zoomLine(frame, line * WIDTH, zoomed, dst, WIDTH, zoom,
+                    shade, masks != null ? masks[dy] : null);
+            }
+        }
+        return zoomed;
+    }
+
+    /*
+     * Lo que hace JSpeccyScreen.filterMasks con scanlines y máscara RGB a la
+     * vez, que no se puede en la aplicación pero así se miden los dos. Se
+     * trabaja sobre una copia de la imagen ampliada, así que la copia cuenta
+     * en el tiempo.
+     */
+    @Benchmark
+    public int[] smoothScanlinesRgb() {
+        System.arraycopy(smoothed, 0, zoomed, 0, zoomed.length);
+
+        int masks[][] = MASKS[zoom];
+        int scanline = zoom == 4 ? 2 : 1;
+        int zoomedWidth = WIDTH * zoom;
+        for (int line = 0; line < HEIGHT; line++) {
+            int pixel = line * zoom * zoomedWidth;
+            int dark = pixel + scanline * zoomedWidth;
+            pixelKernels.shadeBlocks(zoomed, dark,
+                scanline + 1 < zoom ? dark + zoomedWidth : -1, WIDTH, zoom);
+            for (int dy = 0, dst = pixel; dy < zoom; dy++, dst += zoomedWidth) {
+                pixelKernels.maskLine(zoomed, dst, WIDTH, zoom, masks[dy]);
+            }
+        }
+        return zoomed;
+    }
+}
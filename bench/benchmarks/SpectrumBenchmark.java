@@ -0,0 +1,141 @@
+/*
+ * Benchmark JMH de la CPU Z80 sobre el bus contenido de machine.Spectrum.
+ */
+package benchmarks;
+
+import configuration.JSpeccySettings;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+import javax.swing.JLabel;
+import javax.xml.bind.JAXB;
+import machine.MachineTypes;
+import machine.Memory;
+import machine.Spectrum;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import snapshots.SpectrumState;
+import utilities.Tape;
+
+/**
+ * Ejecuta frames completos con Spectrum.generateFrame: contención de memoria
+ * y de puertos, seguimiento del haz y borde, pero sin sonido ni volcado a
+ * pantalla. Con la unidad de tiempo en microsegundos, el contador "tstates"
+ * da directamente los MHz emulados y "instructions" los MIPS.
+ *
+ * @author agent
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class SpectrumBenchmark {
+
+    @Param({"SPECTRUM48K", "SPECTRUM128K", "SPECTRUMPLUS2A"})
+    public MachineTypes model;
+
+    @Param({"MIX", "LDIR", "INTERRUPT"})
+    public Workload workload;
+
+    @Param({"false", "true"})
+    public boolean translate;
+
+    private CountingSpectrum spectrum;
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Counters {
+        // Ciclos M1: un prefijo cuenta como un ciclo más, igual que en el R
+        public long instructions;
+        public long tstates;
+
+        @Setup(Level.Iteration)
+        public void clean() {
+            instructions = tstates = 0;
+        }
+    }
+
+    static final class CountingSpectrum extends Spectrum {
+        long fetches;
+
+        CountingSpectrum(JSpeccySettings config) {
+            super(config);
+        }
+
+        @Override
+        public int fetchOpcode(int address) {
+            fetches++;
+            return super.fetchOpcode(address);
+        }
+
+        // Las iteraciones de LDIR/LDDR en bloque no pasan por fetchOpcode
+        @Override
+        public int copyBlock(int pc, int from, int to, int count, boolean increment,
+            int statesLimit) {
+            int done = super.copyBlock(pc, from, to, count, increment, statesLimit);
+            fetches += 2 * done;
+            return done;
+        }
+
+        @Override
+        public int haltCycles(int address, int statesLimit) {
+            int done = super.haltCycles(address, statesLimit);
+            fetches += done;
+            return done;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        if (workload == Workload.ZEXDOC) {
+            throw new IllegalArgumentException("ZEXDOC runs from 0x0100, in ROM on a Spectrum");
+        }
+
+        JSpeccySettings settings;
+        try (InputStream in = Spectrum.class.getResourceAsStream("/schema/JSpeccy.xml")) {
+            settings = JAXB.unmarshal(in, JSpeccySettings.class);
+        }
+
+        spectrum = new CountingSpectrum(settings);
+        spectrum.selectHardwareModel(model);
+        spectrum.setJoystick(0);
+        spectrum.loadConfigVars();
+        spectrum.setTape(new Tape(settings.getTapeSettings(), spectrum.getClock()));
+        spectrum.setSpeedLabel(new JLabel());
+        spectrum.setTranslationEnabled(translate);
+
+        // setSpectrumState reinicia la memoria, así que primero el PC...
+        SpectrumState state = spectrum.getSpectrumState();
+        state.getZ80State().setRegPC(workload.getEntryPoint());
+        spectrum.setSpectrumState(state);
+
+        // ...y después el programa, en la RAM visible desde 0x4000
+        Memory memory = spectrum.getMemory();
+        byte image[] = workload.getImage(null);
+        for (int address = 0x4000; address < image.length; address++) {
+            memory.writeByte(address, image[address]);
+        }
+    }
+
+    @Benchmark
+    public void frame(Counters counters) {
+        spectrum.generateFrame();
+
+        counters.tstates += model.tstatesFrame;
+        counters.instructions += spectrum.fetches;
+        spectrum.fetches = 0;
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * Cargas de trabajo para los benchmarks de la CPU y del bus del Spectrum.
+ */
+package benchmarks;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+/**
+ * Programas Z80 que ejecutan los benchmarks. Cada bloque empieza con su
+ * dirección de carga, seguida de los bytes del bloque.
+ *
+ * @author agent
+ */
+public enum Workload {
+
+    // Mezcla de instrucciones, con y sin prefijos, en un bucle cerrado
+    MIX(0x8000, new int[] { 0x8000,
+        0x31, 0x00, 0xFF,       // LD SP,0xFF00
+        0xDD, 0x21, 0x00, 0xC0, // LD IX,0xC000
+        0xFD, 0x21, 0x00, 0xC1, // LD IY,0xC100
+        0x06, 0x00,             // loop: LD B,0
+        0xDD, 0x7E, 0x01,       // inner: LD A,(IX+1)
+        0xFD, 0x86, 0x02,       // ADD A,(IY+2)
+        0xDD, 0x77, 0x03,       // LD (IX+3),A
+        0xDD, 0xCB, 0x04, 0x06, // RLC (IX+4)
+        0xCB, 0x5F,             // BIT 3,A
+        0xCB, 0x3F,             // SRL A
+        0x21, 0x34, 0x12,       // LD HL,0x1234
+        0x19,                   // ADD HL,DE
+        0xED, 0x42,             // SBC HL,BC
+        0xE5,                   // PUSH HL
+        0xD1,                   // POP DE
+        0xEB,                   // EX DE,HL
+        0xD9,                   // EXX
+        0x0C,                   // INC C
+        0xAB,                   // XOR E
+        0xE6, 0x5A,             // AND 0x5A
+        0xB4,                   // OR H
+        0xBD,                   // CP L
+        0x27,                   // DAA
+        0xD9,                   // EXX
+        0x20, 0x00,             // JR NZ,$+2
+        0x10, 0xD9,             // DJNZ inner
+        0xC3, 0x0B, 0x80        // JP loop
+    }),
+    // Copias de bloque: pantalla -> 0xC000, 0xC000 -> pantalla y borrado
+    LDIR(0x8000, new int[] { 0x8000,
+        0x31, 0x00, 0xFF,       // LD SP,0xFF00
+        0x21, 0x00, 0x40,       // loop: LD HL,0x4000
+        0x11, 0x00, 0xC0,       // LD DE,0xC000
+        0x01, 0x00, 0x1B,       // LD BC,0x1B00
+        0xED, 0xB0,             // LDIR
+        0x21, 0x00, 0xC0,       // LD HL,0xC000
+        0x11, 0x00, 0x40,       // LD DE,0x4000
+        0x01, 0x00, 0x1B,       // LD BC,0x1B00
+        0xED, 0xB0,             // LDIR
+        0x21, 0x00, 0x40,       // LD HL,0x4000
+        0x11, 0x01, 0x40,       // LD DE,0x4001
+        0x01, 0xFF, 0x17,       // LD BC,0x17FF
+        0x75,                   // LD (HL),L
+        0xED, 0xB0,             // LDIR
+        0xC3, 0x03, 0x80        // JP loop
+    }),
+    // IM 2 con una rutina de interrupción que anima los atributos y un
+    // bucle principal que espera en HALT a la siguiente interrupción.
+    INTERRUPT(0x8000, new int[] { 0x8000,
+        0xF3,                   // DI
+        0x31, 0x00, 0xFD,       // LD SP,0xFD00
+        0x3E, 0xFE,             // LD A,0xFE
+        0xED, 0x47,             // LD I,A
+        0xED, 0x5E,             // IM 2
+        0xFB,                   // EI
+        0x76,                   // loop: HALT
+        0x2A, 0x00, 0xC0,       // LD HL,(0xC000)
+        0x23,                   // INC HL
+        0x22, 0x00, 0xC0,       // LD (0xC000),HL
+        0x18, 0xF6              // JR loop
+    }, new int[] { 0xFEFF,
+        0xF0, 0xF0              // vector IM 2 (bus de datos a 0xFF)
+    }, new int[] { 0xF0F0,
+        0xF5,                   // PUSH AF
+        0xC5,                   // PUSH BC
+        0xE5,                   // PUSH HL
+        0x21, 0x00, 0x58,       // LD HL,0x5800
+        0x06, 0x20,             // LD B,0x20
+        0x34,                   // isr: INC (HL)
+        0x2C,                   // INC L
+        0x10, 0xFC,             // DJNZ isr
+        0xE1,                   // POP HL
+        0xC1,                   // POP BC
+        0xF1,                   // POP AF
+        0xFB,                   // EI
+        0xED, 0x4D              // RETI
+    }),
+    // zexdoc/zexall (ficheros .COM de CP/M), cargados desde zexFile. La
+    // llamada al BDOS en 0x0005 sólo retorna y el fin del test vuelve a
+    // empezarlo, así que el ejercitador se ejecuta en bucle.
+    ZEXDOC(0x0100, new int[] { 0x0000,
+        0xC3, 0x00, 0x01,       // JP 0x0100
+        0x00, 0x00,
+        0xC9,                   // BDOS: RET
+        0x00, 0xF0              // tope de la pila para el test (0xF000)
+    });
+
+    private final int entryPoint;
+    private final int blocks[][];
+
+    private Workload(int entry, int[]... code) {
+        entryPoint = entry;
+        blocks = code;
+    }
+
+    public int getEntryPoint() {
+        return entryPoint;
+    }
+
+    /**
+     * Devuelve la imagen de 64K con el programa cargado. Las posiciones que
+     * no usa el programa quedan a cero.
+     *
+     * @param zexFile fichero .COM de zexdoc/zexall, sólo para ZEXDOC
+     */
+    public byte[] getImage(String zexFile) throws IOException {
+        byte image[] = new byte[0x10000];
+
+        for (int block[] : blocks) {
+            for (int idx = 1; idx < block.length; idx++) {
+                image[(block[0] + idx - 1) & 0xffff] = (byte) block[idx];
+            }
+        }
+
+        if (this == ZEXDOC) {
+            if (zexFile == null || zexFile.isEmpty()) {
+                throw new IllegalArgumentException("ZEXDOC workload needs -p zexFile=<zexdoc.com>");
+            }
+            byte com[] = Files.readAllBytes(Paths.get(zexFile));
+            System.arraycopy(com, 0, image, 0x0100, Math.min(com.length, 0xEF00));
+        }
+
+        return image;
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Benchmark JMH de la CPU Z80 sobre el bus plano de z80core.MemIoOps.
+ */
+package benchmarks;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import machine.Clock;
+import machine.MachineTypes;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import z80core.MemIoOps;
+import z80core.NotifyOps;
+import z80core.Z80;
+
+/**
+ * Ejecuta frames de 48K (69888 t-estados) sobre 64K de RAM plana, sin
+ * contención. Con la unidad de tiempo en microsegundos, el contador
+ * "tstates" da directamente los MHz emulados y "instructions" los MIPS.
+ *
+ * @author agent
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class Z80Benchmark {
+
+    @Param({"MIX", "LDIR", "INTERRUPT"})
+    public Workload workload;
+
+    @Param("")
+    public String zexFile;
+
+    @Param({"false", "true"})
+    public boolean translate;
+
+    private Clock clock;
+    private FlatBus bus;
+    private Z80 z80;
+    private int tstatesFrame;
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Counters {
+        // Ciclos M1: un prefijo cuenta como un ciclo más, igual que en el R
+        public long instructions;
+        public long tstates;
+
+        @Setup(Level.Iteration)
+        public void clean() {
+            instructions = tstates = 0;
+        }
+    }
+
+    /*
+     * Bus plano que cuenta las lecturas de opcode y activa la INT durante
+     * los primeros 32 t-estados de cada frame, como la ULA del 48K.
+     */
+    static final class FlatBus extends MemIoOps implements NotifyOps {
+        long fetches;
+
+        @Override
+        public int fetchOpcode(int address) {
+            fetches++;
+            return super.fetchOpcode(address);
+        }
+
+        @Override
+        public boolean isActiveINT() {
+            return clock.getTstates() < 32;
+        }
+
+        // Sin contención ni timeouts, y la INT sólo llega al empezar el frame
+        @Override
+        public int haltCycles(int address, int statesLimit) {
+            int count = (statesLimit - clock.getTstates() + 3) >>> 2;
+            clock.addTstates(4 * count);
+            fetches += count;
+            return count;
+        }
+
+        @Override
+        public int breakpoint(int address, int opcode) {
+            return opcode;
+        }
+
+        @Override
+        public void execDone() {
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        bus = new FlatBus();
+        clock = bus.getClock();
+        clock.setSpectrumModel(MachineTypes.SPECTRUM48K);
+        tstatesFrame = MachineTypes.SPECTRUM48K.tstatesFrame;
+
+        bus.setRam(workload.getImage(zexFile));
+        z80 = new Z80(bus, bus);
+        z80.setRegPC(workload.getEntryPoint());
+        z80.setTranslationEnabled(translate);
+    }
+
+    @Benchmark
+    public void frame(Counters counters) {
+        z80.execute(tstatesFrame);
+        clock.endFrame();
+
+        counters.tstates += tstatesFrame;
+        counters.instructions += bus.fetches;
+        bus.fetches = 0;
+    }
+}
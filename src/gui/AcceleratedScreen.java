@@ -0,0 +1,161 @@
+/*
+ * AcceleratedScreen: la pantalla a través de un BufferStrategy.
+ */
+package gui;
+
+import java.awt.AlphaComposite;
+import java.awt.Canvas;
+import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.GraphicsConfiguration;
+import java.awt.GraphicsEnvironment;
+import java.awt.RenderingHints;
+import java.awt.Toolkit;
+import java.awt.image.BufferStrategy;
+import java.awt.image.BufferedImage;
+import java.awt.image.VolatileImage;
+
+/**
+ * Un Canvas que JSpeccyScreen pone encima de sí misma para mostrar los frames
+ * sin pasar por el RepaintManager de Swing. El frame se guarda en una
+ * VolatileImage, que vive en la tarjeta gráfica, y en cada frame sólo se le
+ * sube la zona que ha cambiado. Luego se escala entera al buffer de atrás
+ * del BufferStrategy, cosa que hace el pipeline (OpenGL, Direct3D,
+ * XRender...) y no la CPU, y se muestra con un flip o con un blit.
+ *
+ * Todo se hace en el EDT, igual que el repintado de JSpeccyScreen.
+ *
+ * @author agent
+ */
+final class AcceleratedScreen extends Canvas {
+
+    private static final int BUFFERS = 2;
+    // Si la tarjeta pierde lo pintado tantas veces seguidas, se deja para
+    // el siguiente frame
+    private static final int MAX_TRIES = 3;
+
+    private final JSpeccyScreen screen;
+    private VolatileImage frame;
+
+    AcceleratedScreen(JSpeccyScreen screen) {
+        this.screen = screen;
+        // El teclado lo recibe la ventana
+        setFocusable(false);
+    }
+
+    /*
+     * Sólo merece la pena si las VolatileImage van en la tarjeta gráfica.
+     */
+    static boolean isSupported() {
+        if (GraphicsEnvironment.isHeadless()) {
+            return false;
+        }
+
+        GraphicsConfiguration gc = GraphicsEnvironment.getLocalGraphicsEnvironment()
+            .getDefaultScreenDevice().getDefaultConfiguration();
+        VolatileImage probe = gc.createCompatibleVolatileImage(1, 1);
+        boolean accelerated = probe.getCapabilities().isAccelerated();
+        probe.flush();
+        return accelerated;
+    }
+
+    // Lo que el sistema pide repintar (al destaparse la ventana, al cambiar
+    // de tamaño...) se presenta entero
+    @Override
+    public void paint(Graphics gc) {
+        screen.presentAll();
+    }
+
+    // Sin borrar el fondo, que lo cubre el frame
+    @Override
+    public void update(Graphics gc) {
+        paint(gc);
+    }
+
+    /**
+     * Sube a la VolatileImage la zona [x, x2) x [y, y2) de image y la
+     * muestra entera, escalada a width x height. Si la VolatileImage es
+     * nueva o ha perdido su contenido, se sube image entera.
+     *
+     * @return false si la tarjeta ha perdido lo pintado MAX_TRIES veces y
+     * el frame no se ha visto
+     * @throws IllegalStateException si no se pueden crear los buffers
+     */
+    boolean present(BufferedImage image, int x, int y, int x2, int y2,
+            int width, int height, Object interpolationMethod) {
+        BufferStrategy strategy = getBufferStrategy();
+        if (strategy == null) {
+            createBufferStrategy(BUFFERS);
+            strategy = getBufferStrategy();
+        }
+
+        for (int tries = 0; tries < MAX_TRIES; tries++) {
+            if (validateFrame(image)) {
+                x = y = 0;
+                x2 = image.getWidth();
+                y2 = image.getHeight();
+            }
+
+            if (x < x2 && y < y2) {
+                Graphics2D frameGc = frame.createGraphics();
+                frameGc.setComposite(AlphaComposite.Src);
+                frameGc.drawImage(image, x, y, x2, y2, x, y, x2, y2, null);
+                frameGc.dispose();
+            }
+
+            Graphics2D gc = (Graphics2D) strategy.getDrawGraphics();
+            gc.setRenderingHint(RenderingHints.KEY_INTERPOLATION, interpolationMethod);
+            gc.drawImage(frame, 0, 0, width, height, null);
+            gc.dispose();
+
+            // Si algo se perdió mientras se pintaba, se vuelve a empezar
+            // con el frame entero
+            if (strategy.contentsRestored() || frame.contentsLost()) {
+                continue;
+            }
+
+            strategy.show();
+            if (!strategy.contentsLost()) {
+                // En X11 el flip puede quedarse en la cola del servidor
+                Toolkit.getDefaultToolkit().sync();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /*
+     * Deja frame listo para image. Devuelve true si hay que subirla entera
+     * porque frame es nueva o ha perdido lo que tenía.
+     */
+    private boolean validateFrame(BufferedImage image) {
+        GraphicsConfiguration gc = getGraphicsConfiguration();
+        if (frame != null && frame.getWidth() == image.getWidth()
+                && frame.getHeight() == image.getHeight()) {
+            switch (frame.validate(gc)) {
+                case VolatileImage.IMAGE_OK:
+                    return false;
+                case VolatileImage.IMAGE_RESTORED:
+                    return true;
+                default:
+                    // IMAGE_INCOMPATIBLE: la ventana ha pasado a otra pantalla
+            }
+        }
+
+        if (frame != null) {
+            frame.flush();
+        }
+        frame = gc.createCompatibleVolatileImage(image.getWidth(), image.getHeight());
+        return true;
+    }
+
+    // Al quitarse el peer, el BufferStrategy desaparece con él
+    @Override
+    public void removeNotify() {
+        if (frame != null) {
+            frame.flush();
+            frame = null;
+        }
+        super.removeNotify();
+    }
+}
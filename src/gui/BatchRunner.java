@@ -0,0 +1,343 @@
+/*
+ * Modo batch: ejecuta snapshots y cintas sin interfaz gráfico.
+ */
+package gui;
+
+import configuration.JSpeccySettings;
+import java.awt.image.DataBufferInt;
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.ResourceBundle;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import javax.swing.JLabel;
+import javax.xml.bind.JAXB;
+import machine.MachineTypes;
+import machine.Memory;
+import machine.Spectrum;
+import org.kohsuke.args4j.CmdLineException;
+import org.kohsuke.args4j.CmdLineParser;
+import snapshots.SnapshotException;
+import snapshots.SnapshotFactory;
+import snapshots.SnapshotFile;
+import snapshots.SnapshotSZX;
+import snapshots.SpectrumState;
+import utilities.Tape;
+
+/**
+ * Ejecuta cada archivo de la línea de comandos en su propia máquina durante
+ * un número fijo de frames, sin esperar al reloj, repartiendo las máquinas
+ * en un ForkJoinPool. De cada uno se guarda la pantalla final en PNG y se
+ * escribe una línea con el hash de la imagen y los tiempos. La configuración
+ * de partida es la que va en el .jar, no la del usuario, para que los
+ * resultados no dependan de quién los ejecute.
+ *
+ * @author agent
+ */
+public class BatchRunner {
+
+    private static final List<String> SNAPSHOT_TYPES = Arrays.asList("sna", "z80", "szx", "sp");
+    private static final List<String> TAPE_TYPES = Arrays.asList("tap", "tzx", "csw");
+
+    // Variables del sistema para teclear LOAD "" (Spectrum.autoLoadTape)
+    private static final int LAST_K = 23560;
+    private static final int FLAGS = 23611;
+    private static final int LOAD_KEYS_48K[] = { 0xEF, 0x22, 0x22, 0x0D };
+    private static final int LOAD_KEYS_128K[] = { 0x0D };
+
+    private final CommandLineOptions clo;
+    // Los mensajes de cada máquina (las ROMs cargadas...) van a la salida de
+    // error, de modo que la estándar sólo lleva el informe
+    private final PrintStream report;
+    // Configuración con las opciones ya aplicadas, cada máquina lee su copia
+    private final byte settingsXml[];
+    private final ResourceBundle bundle = ResourceBundle.getBundle("gui/Bundle"); // NOI18N
+
+    private BatchRunner(CommandLineOptions options, JSpeccySettings settings,
+            PrintStream report) {
+        clo = options;
+        this.report = report;
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        JAXB.marshal(settings, out);
+        settingsXml = out.toByteArray();
+    }
+
+    /**
+     * Punto de entrada del modo batch.
+     *
+     * @param args los mismos argumentos que recibe JSpeccy
+     * @return el código de salida: 0 si todos los archivos se ejecutaron
+     */
+    public static int run(String args[]) {
+        JSpeccySettings settings;
+        try (InputStream in = Spectrum.class.getResourceAsStream("/schema/JSpeccy.xml")) {
+            settings = JAXB.unmarshal(in, JSpeccySettings.class);
+        } catch (IOException ioExcpt) {
+            System.err.println("Can't read the default JSpeccy.xml");
+            return 1;
+        }
+
+        CommandLineOptions clo = new CommandLineOptions(settings);
+        CmdLineParser parser = new CmdLineParser(clo);
+        ResourceBundle bundle = ResourceBundle.getBundle("gui/Bundle"); // NOI18N
+        Writer out = new BufferedWriter(new OutputStreamWriter(System.err));
+
+        try {
+            parser.parseArgument(args);
+        } catch (CmdLineException excpt) {
+            System.err.println(excpt.getMessage());
+            System.err.println(bundle.getString("JSpeccy.usage.sample.text"));
+            System.err.println("");
+            System.err.println(bundle.getString("JSpeccy.usage.header.text"));
+            parser.printUsage(out, bundle);
+            System.err.println();
+            return 1;
+        }
+
+        if (clo.isPrintUsage()) {
+            System.err.println(bundle.getString("JSpeccy.usage.sample.text"));
+            System.err.println("");
+            System.err.println(bundle.getString("JSpeccy.usage.header.text"));
+            parser.printUsage(out, bundle);
+            return 0;
+        }
+
+        clo.copyArgumentsToSettings();
+        // Sin pantalla ni sonido, todo el tiempo es de la CPU
+        settings.getSpectrumSettings().setTranslateBlocks(true);
+
+        PrintStream report = System.out;
+        System.setOut(System.err);
+        try {
+            return new BatchRunner(clo, settings, report).runAll();
+        } finally {
+            System.setOut(report);
+        }
+    }
+
+    private int runAll() {
+        List<File> files = new ArrayList<>();
+        // La imagen de cada archivo, con su ruta dentro del directorio
+        List<String> images = new ArrayList<>();
+        Set<String> usedImages = new HashSet<>();
+        for (String name : clo.getArguments()) {
+            File file = new File(name);
+            if (file.isDirectory()) {
+                Path root = file.toPath();
+                try (Stream<Path> tree = Files.walk(root)) {
+                    List<Path> entries = tree
+                        .filter(entry -> Files.isRegularFile(entry) && isAccepted(entry.toFile()))
+                        .sorted()
+                        .collect(Collectors.toList());
+                    for (Path entry : entries) {
+                        files.add(entry.toFile());
+                        images.add(imageName(root.relativize(entry).toString(), usedImages));
+                    }
+                } catch (IOException ioExcpt) {
+                    System.err.println(name + ": " + ioExcpt.getMessage());
+                    return 1;
+                }
+            } else {
+                files.add(file);
+                images.add(imageName(file.getName(), usedImages));
+            }
+        }
+
+        if (files.isEmpty()) {
+            System.err.println(bundle.getString("JSpeccy.usage.sample.text"));
+            return 1;
+        }
+
+        // Las carpetas de las imágenes se crean antes de repartir el trabajo
+        File outputDir = clo.getOutputDir();
+        for (String image : images) {
+            File imageDir = new File(outputDir, image).getParentFile();
+            if (!imageDir.isDirectory() && !imageDir.mkdirs()) {
+                System.err.println("Can't create the output directory " + imageDir);
+                return 1;
+            }
+        }
+
+        // Cada máquina es independiente y sólo usa CPU: una por núcleo
+        ForkJoinPool pool = clo.getThreads() > 0
+            ? new ForkJoinPool(clo.getThreads()) : new ForkJoinPool();
+
+        long start = System.nanoTime();
+        List<ForkJoinTask<String>> jobs = new ArrayList<>(files.size());
+        for (int idx = 0; idx < files.size(); idx++) {
+            File file = files.get(idx);
+            File image = new File(outputDir, images.get(idx));
+            jobs.add(pool.submit(() -> runFile(file, image)));
+        }
+
+        // Los resultados salen en el orden de la línea de comandos
+        report.println("# file\thash\tms\tMHz\tspeed");
+        int failed = 0;
+        for (ForkJoinTask<String> job : jobs) {
+            String result = job.join();
+            if (result.contains("\tERROR\t")) {
+                failed++;
+            }
+            report.println(result);
+        }
+        pool.shutdown();
+
+        report.println(String.format(Locale.ROOT, "# %d files, %d failed, %d ms",
+            files.size(), failed, (System.nanoTime() - start) / 1000000));
+
+        return failed == 0 ? 0 : 1;
+    }
+
+    /*
+     * Los archivos con el mismo nombre en carpetas distintas no pueden
+     * compartir imagen. Cada una lleva la ruta relativa del archivo, así que
+     * en el directorio de salida se repiten las carpetas, y si aun así dos
+     * coinciden (el mismo archivo dos veces, o dos directorios con un
+     * archivo igual en la raíz), la segunda se numera.
+     */
+    private static String imageName(String path, Set<String> used) {
+        String name = path + ".png";
+        for (int copy = 2; !used.add(name.toLowerCase(Locale.ROOT)); copy++) {
+            name = path + "-" + copy + ".png";
+        }
+        return name;
+    }
+
+    private static boolean isAccepted(File file) {
+        String type = getType(file);
+        return SNAPSHOT_TYPES.contains(type) || TAPE_TYPES.contains(type);
+    }
+
+    private static String getType(File file) {
+        String name = file.getName().toLowerCase();
+        return name.substring(name.lastIndexOf('.') + 1);
+    }
+
+    private String runFile(File file, File image) {
+        try {
+            return execute(file, image);
+        } catch (SnapshotException excpt) {
+            return file + "\tERROR\t" + bundle.getString(excpt.getMessage());
+        } catch (RuntimeException excpt) {
+            // Un título roto no debe parar los demás
+            return file + "\tERROR\t" + excpt;
+        }
+    }
+
+    private String execute(File file, File image) throws SnapshotException {
+        String type = getType(file);
+        if (!isAccepted(file)) {
+            return file + "\tERROR\tUnsupported file type";
+        }
+
+        JSpeccySettings settings = JAXB.unmarshal(new ByteArrayInputStream(settingsXml),
+            JSpeccySettings.class);
+
+        Spectrum spectrum = new Spectrum(settings, false);
+        spectrum.selectHardwareModel(settings.getSpectrumSettings().getDefaultModel());
+        spectrum.setJoystick(settings.getKeyboardJoystickSettings().getJoystickModel());
+        spectrum.setBorderMode(settings.getSpectrumSettings().getBorderSize());
+        spectrum.loadConfigVars();
+
+        Tape tape = new Tape(settings.getTapeSettings(), spectrum.getClock());
+        spectrum.setTape(tape);
+        // La pantalla no se muestra, pero drawFrame necesita el componente
+        JSpeccyScreen jscr = new JSpeccyScreen();
+        spectrum.setScreenComponent(jscr);
+        jscr.setTvFrames(spectrum.getTvFrames());
+        spectrum.setSpeedLabel(new JLabel());
+
+        // La RAM se llena al azar al encender; a cero, los resultados se repiten
+        Memory memory = spectrum.getMemory();
+        byte blank[] = new byte[0x4000];
+        for (int page = 0; page < 8; page++) {
+            memory.loadPage(page, blank);
+        }
+
+        boolean autoLoad = false;
+        if (SNAPSHOT_TYPES.contains(type)) {
+            SnapshotFile snap = SnapshotFactory.getSnapshot(file);
+            SpectrumState snapState = snap.load(file);
+            if (snap instanceof SnapshotSZX) {
+                SnapshotSZX snapSZX = (SnapshotSZX) snap;
+                if (snapSZX.isTapeEmbedded()) {
+                    tape.eject();
+                    tape.insertEmbeddedTape(snapSZX.getTapeName(), snapSZX.getTapeExtension(),
+                        snapSZX.getTapeData(), snapSZX.getTapeBlock());
+                }
+
+                if (snapSZX.isTapeLinked()) {
+                    File tapeLink = new File(snapSZX.getTapeName());
+
+                    if (tapeLink.exists()) {
+                        tape.eject();
+                        tape.insert(tapeLink);
+                        tape.setSelectedBlock(snapSZX.getTapeBlock());
+                    }
+                }
+            }
+
+            spectrum.setSpectrumState(snapState);
+        } else {
+            if (!tape.insert(file)) {
+                return file + "\tERROR\t" + bundle.getString("LOAD_TAPE_ERROR");
+            }
+            spectrum.reset();
+            autoLoad = settings.getTapeSettings().isAutoLoadTape();
+        }
+
+        MachineTypes model = spectrum.getSpectrumModel();
+        int frames = Math.max(clo.getFrames(), 1);
+
+        // Spectrum.autoLoadTape teclea con esperas de tiempo real, que aquí
+        // no significan nada: las teclas van a frames fijos desde el reset.
+        int keys[] = model.codeModel == MachineTypes.CodeModel.SPECTRUM48K
+            ? LOAD_KEYS_48K : LOAD_KEYS_128K;
+        int firstKeyFrame = model.codeModel == MachineTypes.CodeModel.SPECTRUM48K ? 100 : 70;
+        int nextKey = autoLoad ? 0 : keys.length;
+
+        long start = System.nanoTime();
+        for (int frame = 0; frame < frames; frame++) {
+            if (nextKey < keys.length && frame >= firstKeyFrame
+                && (frame - firstKeyFrame) % 2 == 0) {
+                memory.writeByte(LAST_K, (byte) keys[nextKey++]);
+                memory.writeByte(FLAGS, (byte) (memory.readByte(FLAGS) | 0x20));
+            }
+
+            // El último frame se redibuja entero, también el borde
+            if (frame == frames - 1) {
+                spectrum.invalidateScreen(true);
+            }
+            spectrum.generateFrame();
+        }
+        long elapsed = Math.max(System.nanoTime() - start, 1);
+
+        spectrum.drawFrame();
+        int pixels[] = ((DataBufferInt) spectrum.getTvImage().getRaster().getDataBuffer()).getData();
+        spectrum.saveImage(image);
+
+        // La velocidad está medida frente a la del modelo real
+        model = spectrum.getSpectrumModel();
+        double tstates = (double) frames * model.tstatesFrame;
+        return String.format(Locale.ROOT, "%s\t%08x\t%d\t%.1f\t%.0f%%", file,
+            Arrays.hashCode(pixels), elapsed / 1000000, tstates * 1000 / elapsed,
+            tstates / model.clockFreq * 1e11 / elapsed);
+    }
+}
@@ -57,6 +57,9 @@ public class CommandLineOptions {
     @Option(name = "--issue2", usage = "CommandLineOptions.issue2.text")
     private boolean issue2;
 
+    @Option(name = "--translate-blocks", usage = "CommandLineOptions.translateBlocks.text")
+    private boolean translateBlocks;
+
     @Option(name = "-j", aliases = "--joystick", metaVar = "CommandLineOptions.metaVar.model.text",
             usage = "CommandLineOptions.joystick.text")
     private JoystickModel joystick = JoystickModel.NONE;
@@ -64,12 +67,19 @@ public class CommandLineOptions {
     @Option(name = "--map-pc-keyboard", usage = "CommandLineOptions.mapPCkeyboard.text")
     private boolean mapPCkeys;
 
+    @Option(name = "--run-ahead", metaVar = "CommandLineOptions.metaVar.number.text",
+            usage = "CommandLineOptions.runAhead.text")
+    private int runAhead;
+
     @Option(name = "-z", aliases = "--zoom", metaVar = "CommandLineOptions.metaVar.size.text",
             usage = "CommandLineOptions.zoom.text")
     private int zoom = 1;
     
     @Option(name = "--scanlines", usage = "CommandLineOptions.scanlines.text")
     private boolean scanlines;
+
+    @Option(name = "--accelerated-screen", usage = "CommandLineOptions.acceleratedScreen.text")
+    private boolean acceleratedScreen;
     
     @Option(name = "--mute", usage = "CommandLineOptions.mute.text")
     private boolean silence;
@@ -80,6 +90,9 @@ public class CommandLineOptions {
     @Option(name = "--hifi-sound", usage = "CommandLineOptions.hifi.text")
     private boolean hifi;
 
+    @Option(name = "--wall-clock", usage = "CommandLineOptions.wallClock.text")
+    private boolean wallClock;
+
     enum SoundMode { MONO, ABC, ACB, BAC };
     @Option(name = "--sound-mode", metaVar = "CommandLineOptions.metaVar.mode.text",
             usage = "CommandLineOptions.soundMode.text")
@@ -113,6 +126,24 @@ public class CommandLineOptions {
     @Option(name = "--no-confirm-actions", usage = "CommandLineOptions.noConfirmActions.text")
     private boolean confirmActions;
 
+    @Option(name = "--max-speed", usage = "CommandLineOptions.maxSpeed.text")
+    private boolean maxSpeed;
+
+    @Option(name = "--batch", usage = "CommandLineOptions.batch.text")
+    private boolean batch;
+
+    @Option(name = "--frames", depends = "--batch", metaVar = "CommandLineOptions.metaVar.number.text",
+            usage = "CommandLineOptions.frames.text")
+    private int frames = 1000;
+
+    @Option(name = "--output-dir", depends = "--batch", metaVar = "CommandLineOptions.metaVar.directory.text",
+            usage = "CommandLineOptions.outputDir.text")
+    private File outputDir = new File(".");
+
+    @Option(name = "--threads", depends = "--batch", metaVar = "CommandLineOptions.metaVar.number.text",
+            usage = "CommandLineOptions.threads.text")
+    private int threads;
+
     // receives other command line parameters than options
     @Argument
     private List<String> arguments = new ArrayList<>();
@@ -144,8 +175,48 @@ public class CommandLineOptions {
     public File getIf1mdv() {
         return if1mdv;
     }
-    
+
+    /**
+     * @return the maxSpeed
+     */
+    public boolean isMaxSpeed() {
+        return maxSpeed;
+    }
+
+    /**
+     * @return the batch
+     */
+    public boolean isBatch() {
+        return batch;
+    }
+
+    /**
+     * @return the frames
+     */
+    public int getFrames() {
+        return frames;
+    }
+
+    /**
+     * @return the outputDir
+     */
+    public File getOutputDir() {
+        return outputDir;
+    }
+
+    /**
+     * @return the threads (0 for all the available processors)
+     */
+    public int getThreads() {
+        return threads;
+    }
+
     public void copyArgumentsToSettings() {
+        copyArgumentsToSettings(settings);
+    }
+
+    // El modo batch necesita una copia de la configuración para cada máquina
+    public void copyArgumentsToSettings(JSpeccySettings settings) {
         // hardware options
         settings.getSpectrumSettings().setDefaultModel(model.ordinal());
         settings.getSpectrumSettings().setULAplus(ulaplus);
@@ -157,11 +228,14 @@ public class CommandLineOptions {
         if (lec && model == Model.sp48k)
             settings.getSpectrumSettings().setLecEnabled(lec);
         settings.getSpectrumSettings().setEmulate128KBug(bug128k);
+        settings.getSpectrumSettings().setTranslateBlocks(translateBlocks);
 
         // Keyboard options
         settings.getKeyboardJoystickSettings().setIssue2(issue2);
         settings.getKeyboardJoystickSettings().setJoystickModel(joystick.ordinal());
         settings.getKeyboardJoystickSettings().setMapPCKeys(mapPCkeys);
+        if (runAhead > 0 && runAhead <= 4)
+            settings.getSpectrumSettings().setAheadFrames(runAhead);
 
         // Screen options
         if (zoom < 2 || zoom > 4)
@@ -172,9 +246,11 @@ public class CommandLineOptions {
         settings.getSpectrumSettings().setScanLines(scanlines);
         settings.getSpectrumSettings().setZoomMethod(zoomFilter.ordinal());
         settings.getSpectrumSettings().setBorderSize(borderSize.ordinal());
+        settings.getSpectrumSettings().setAcceleratedScreen(acceleratedScreen);
         
         // sound options
         settings.getSpectrumSettings().setMutedSound(silence);
+        settings.getSpectrumSettings().setWallClockSync(wallClock);
         if (!silence) {
             settings.getSpectrumSettings().setAYEnabled48K(ayEnabled);
             settings.getSpectrumSettings().setHifiSound(hifi);
@@ -77,6 +77,9 @@ public class JSpeccy extends javax.swing.JFrame {
     private FileNameExtensionFilter allSnapTapeExtension, snapshotExtension, saveSnapshotExtension,
             tapeExtension, createTapeExtension, imageExtension, screenExtension, romExtension;
     private SpectrumState memorySnapshot;
+    // La instantánea en memoria va a un slot; memorySnapshot sólo se usa con
+    // el LEC conectado, que no cabe en él
+    private final StateSlot memorySlot = new StateSlot();
     private CommandLineOptions clo;
 
     Icon mdrOn = new ImageIcon(getClass().getResource("/icons/microdrive_on.png"));
@@ -312,6 +315,11 @@ public class JSpeccy extends javax.swing.JFrame {
                 spectrum.getInterface1().insertFile(0, clo.getIf1mdv());
             }
 
+            if (clo.isMaxSpeed()) {
+                maxSpeedMachineMenu.setSelected(true);
+                spectrum.setMaxSpeed(true);
+            }
+
             if (clo.getArguments().size() == 1) {
                 File file = new File(clo.getArguments().get(0));
                 if (snapshotExtension.accept(file)) {
@@ -574,6 +582,7 @@ public class JSpeccy extends javax.swing.JFrame {
             toSave.getSpectrumSettings().setZoomMethod(zoomM);
             toSave.getSpectrumSettings().setFilterMethod(filterM);
             toSave.getSpectrumSettings().setScanLines(scanlinesFilter.isSelected());
+            toSave.getSpectrumSettings().setRewindEnabled(rewindEnabledMachineMenu.isSelected());
 
             toSave.getSpectrumSettings().setBorderSize(jscr.getBorderMode());
 
@@ -606,13 +615,18 @@ public class JSpeccy extends javax.swing.JFrame {
         spectrum.setBorderMode(settings.getSpectrumSettings().getBorderSize());
         
         spectrum.loadConfigVars();
+
+        spectrum.setRewindEnabled(settings.getSpectrumSettings().isRewindEnabled());
+
+        spectrum.getFrameMetrics().register();
         
-        tape = new Tape(settings.getTapeSettings());
+        tape = new Tape(settings.getTapeSettings(), spectrum.getClock());
         spectrum.setTape(tape);
         jscr = new JSpeccyScreen();
         spectrum.setScreenComponent(jscr);
-        jscr.setTvImage(spectrum.getTvImage());
+        jscr.setTvFrames(spectrum.getTvFrames());
         jscr.setBorderMode(settings.getSpectrumSettings().getBorderSize());
+        jscr.setAccelerated(settings.getSpectrumSettings().isAcceleratedScreen());
         spectrum.setSpeedLabel(speedLabel);
         tapeCatalog.setModel(tape.getTapeTableModel());
         tapeCatalog.getColumnModel().getColumn(0).setMaxWidth(150);
@@ -740,6 +754,9 @@ public class JSpeccy extends javax.swing.JFrame {
         jscr.setScanlinesFilter(settings.getSpectrumSettings().isScanLines());
         scanlinesFilter.setSelected(settings.getSpectrumSettings().isScanLines());
 
+        rewindEnabledMachineMenu.setSelected(settings.getSpectrumSettings().isRewindEnabled());
+        rewindMachineMenu.setEnabled(rewindEnabledMachineMenu.isSelected());
+
         switch(settings.getSpectrumSettings().getFilterMethod()) {
             case 1: // PAL TV
                 jscr.setPalFilter(true);
@@ -1059,6 +1076,9 @@ public class JSpeccy extends javax.swing.JFrame {
         settingsOptionsMenu = new javax.swing.JMenuItem();
         machineMenu = new javax.swing.JMenu();
         pauseMachineMenu = new javax.swing.JCheckBoxMenuItem();
+        rewindMachineMenu = new javax.swing.JCheckBoxMenuItem();
+        rewindEnabledMachineMenu = new javax.swing.JCheckBoxMenuItem();
+        maxSpeedMachineMenu = new javax.swing.JCheckBoxMenuItem();
         silenceMachineMenu = new javax.swing.JCheckBoxMenuItem();
         jSeparator17 = new javax.swing.JPopupMenu.Separator();
         resetMachineMenu = new javax.swing.JMenuItem();
@@ -1393,9 +1413,9 @@ public class JSpeccy extends javax.swing.JFrame {
     speedLabel.setHorizontalAlignment(javax.swing.SwingConstants.RIGHT);
     speedLabel.setText(bundle.getString("JSpeccy.speedLabel.text")); // NOI18N
     speedLabel.setBorder(javax.swing.BorderFactory.createEmptyBorder(1, 1, 1, 1));
-    speedLabel.setMaximumSize(new java.awt.Dimension(85, 18));
+    speedLabel.setMaximumSize(new java.awt.Dimension(150, 18));
     speedLabel.setMinimumSize(new java.awt.Dimension(50, 18));
-    speedLabel.setPreferredSize(new java.awt.Dimension(60, 18));
+    speedLabel.setPreferredSize(new java.awt.Dimension(140, 18));
     speedLabel.setRequestFocusEnabled(false);
     statusPanel.add(speedLabel);
 
@@ -1847,6 +1867,32 @@ public class JSpeccy extends javax.swing.JFrame {
     });
     machineMenu.add(pauseMachineMenu);
 
+    rewindMachineMenu.setAccelerator(javax.swing.KeyStroke.getKeyStroke(java.awt.event.KeyEvent.VK_R, java.awt.event.InputEvent.ALT_MASK));
+    rewindMachineMenu.setText(bundle.getString("JSpeccy.rewindMachineMenu.text")); // NOI18N
+    rewindMachineMenu.addActionListener(new java.awt.event.ActionListener() {
+        public void actionPerformed(java.awt.event.ActionEvent evt) {
+            rewindMachineMenuActionPerformed(evt);
+        }
+    });
+    machineMenu.add(rewindMachineMenu);
+
+    rewindEnabledMachineMenu.setText(bundle.getString("JSpeccy.rewindEnabledMachineMenu.text")); // NOI18N
+    rewindEnabledMachineMenu.addActionListener(new java.awt.event.ActionListener() {
+        public void actionPerformed(java.awt.event.ActionEvent evt) {
+            rewindEnabledMachineMenuActionPerformed(evt);
+        }
+    });
+    machineMenu.add(rewindEnabledMachineMenu);
+
+    maxSpeedMachineMenu.setAccelerator(javax.swing.KeyStroke.getKeyStroke(java.awt.event.KeyEvent.VK_X, java.awt.event.InputEvent.ALT_MASK));
+    maxSpeedMachineMenu.setText(bundle.getString("JSpeccy.maxSpeedMachineMenu.text")); // NOI18N
+    maxSpeedMachineMenu.addActionListener(new java.awt.event.ActionListener() {
+        public void actionPerformed(java.awt.event.ActionEvent evt) {
+            maxSpeedMachineMenuActionPerformed(evt);
+        }
+    });
+    machineMenu.add(maxSpeedMachineMenu);
+
     silenceMachineMenu.setText(bundle.getString("JSpeccy.silenceMachineMenu.text")); // NOI18N
     silenceMachineMenu.addActionListener(new java.awt.event.ActionListener() {
         public void actionPerformed(java.awt.event.ActionEvent evt) {
@@ -2240,6 +2286,23 @@ public class JSpeccy extends javax.swing.JFrame {
         }
     }//GEN-LAST:event_pauseMachineMenuActionPerformed
 
+    private void rewindMachineMenuActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_rewindMachineMenuActionPerformed
+        spectrum.setRewinding(rewindMachineMenu.isSelected());
+    }//GEN-LAST:event_rewindMachineMenuActionPerformed
+
+    private void rewindEnabledMachineMenuActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_rewindEnabledMachineMenuActionPerformed
+        boolean enabled = rewindEnabledMachineMenu.isSelected();
+        spectrum.setRewindEnabled(enabled);
+        rewindMachineMenu.setEnabled(enabled);
+        if (!enabled) {
+            rewindMachineMenu.setSelected(false);
+        }
+    }//GEN-LAST:event_rewindEnabledMachineMenuActionPerformed
+
+    private void maxSpeedMachineMenuActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_maxSpeedMachineMenuActionPerformed
+        spectrum.setMaxSpeed(maxSpeedMachineMenu.isSelected());
+    }//GEN-LAST:event_maxSpeedMachineMenuActionPerformed
+
     private void resetMachineMenuActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_resetMachineMenuActionPerformed
         ResourceBundle bundle = ResourceBundle.getBundle("gui/Bundle"); // NOI18N
 
@@ -3036,16 +3099,20 @@ public class JSpeccy extends javax.swing.JFrame {
     }//GEN-LAST:event_closePokeDialogButtonActionPerformed
 
     private void loadMemorySnapshotActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_loadMemorySnapshotActionPerformed
-        if (memorySnapshot == null)
+        if (memorySnapshot == null && memorySlot.isEmpty())
             return;
         
         stopEmulation();
-        spectrum.setSpectrumState(memorySnapshot);
+        if (memorySnapshot != null) {
+            spectrum.setSpectrumState(memorySnapshot);
+        } else {
+            spectrum.quickLoad(memorySlot);
+        }
         startEmulation();
     }//GEN-LAST:event_loadMemorySnapshotActionPerformed
 
     private void saveMemorySnapshotActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_saveMemorySnapshotActionPerformed
-        memorySnapshot = spectrum.getSpectrumState();
+        memorySnapshot = spectrum.quickSave(memorySlot) ? null : spectrum.getSpectrumState();
         loadMemorySnapshot.setEnabled(true);
     }//GEN-LAST:event_saveMemorySnapshotActionPerformed
 
@@ -3120,7 +3187,7 @@ public class JSpeccy extends javax.swing.JFrame {
         stopEmulation();
         spectrum.setBorderMode(0);
         jscr.setBorderMode(0);
-        jscr.setTvImage(spectrum.getTvImage());
+        jscr.setTvFrames(spectrum.getTvFrames());
         pack();
         startEmulation();
     }//GEN-LAST:event_noBorderActionPerformed
@@ -3133,7 +3200,7 @@ public class JSpeccy extends javax.swing.JFrame {
         stopEmulation();
         spectrum.setBorderMode(1);
         jscr.setBorderMode(1);
-        jscr.setTvImage(spectrum.getTvImage());
+        jscr.setTvFrames(spectrum.getTvFrames());
         pack();
         startEmulation();
     }//GEN-LAST:event_standardBorderActionPerformed
@@ -3146,7 +3213,7 @@ public class JSpeccy extends javax.swing.JFrame {
         stopEmulation();
         spectrum.setBorderMode(3);
         jscr.setBorderMode(3);
-        jscr.setTvImage(spectrum.getTvImage());
+        jscr.setTvFrames(spectrum.getTvFrames());
         pack();
         startEmulation();
     }//GEN-LAST:event_hugeBorderActionPerformed
@@ -3159,7 +3226,7 @@ public class JSpeccy extends javax.swing.JFrame {
         stopEmulation();
         spectrum.setBorderMode(2);
         jscr.setBorderMode(2);
-        jscr.setTvImage(spectrum.getTvImage());
+        jscr.setTvFrames(spectrum.getTvFrames());
         pack();
         startEmulation();
     }//GEN-LAST:event_fullBorderActionPerformed
@@ -3190,6 +3257,11 @@ public class JSpeccy extends javax.swing.JFrame {
      * @param args the command line arguments
      */
     public static void main(final String args[]) {
+        // El modo batch no llega a crear la ventana
+        if (java.util.Arrays.asList(args).contains("--batch")) {
+            System.exit(BatchRunner.run(args));
+        }
+
         java.awt.EventQueue.invokeLater(() -> {
             new JSpeccy(args).setVisible(true);
         });
@@ -3272,6 +3344,7 @@ public class JSpeccy extends javax.swing.JFrame {
     private javax.swing.JMenuItem loadMemorySnapshot;
     private javax.swing.JMenuItem loadScreenShot;
     private javax.swing.JMenu machineMenu;
+    private javax.swing.JCheckBoxMenuItem maxSpeedMachineMenu;
     private javax.swing.JLabel mdrvLabel;
     private javax.swing.JMenu mediaMenu;
     private javax.swing.JMenuItem memoryBrowserMachineMenu;
@@ -3305,6 +3378,8 @@ public class JSpeccy extends javax.swing.JFrame {
     private javax.swing.JMenuItem reloadTapeMediaMenu;
     private javax.swing.JMenuItem resetMachineMenu;
     private javax.swing.JButton resetSpectrumButton;
+    private javax.swing.JCheckBoxMenuItem rewindEnabledMachineMenu;
+    private javax.swing.JCheckBoxMenuItem rewindMachineMenu;
     private javax.swing.JMenuItem rewindTapeMediaMenu;
     private javax.swing.JRadioButtonMenuItem rgbFilter;
     private javax.swing.JMenuItem saveBinaryFile;
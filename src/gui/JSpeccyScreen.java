@@ -5,13 +5,24 @@
  */
 package gui;
 
+import java.awt.BorderLayout;
 import java.awt.Dimension;
+import java.awt.EventQueue;
 import java.awt.Graphics;
 import java.awt.Graphics2D;
+import java.awt.Rectangle;
 import java.awt.RenderingHints;
 import java.awt.image.BufferedImage;
 import java.awt.image.DataBufferInt;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import machine.FrameMetrics;
+import machine.PixelKernels;
 import machine.Spectrum;
+import machine.TripleBuffer;
 
 /**
  *
@@ -19,7 +30,9 @@ import machine.Spectrum;
  */
 public class JSpeccyScreen extends javax.swing.JComponent {
 
-    private BufferedImage tvImage;
+    private Spectrum spectrum;
+    private TripleBuffer tvFrames;
+    private FrameMetrics metrics;
     private BufferedImage tvImageFiltered;
     private BufferedImage tvPalImage;
     private Graphics2D tvImageFilteredGc;
@@ -31,16 +44,75 @@ public class JSpeccyScreen extends javax.swing.JComponent {
     private boolean scanlinesFilter = false;
     private boolean rgbFilter = false;
     private int[] imageBuffer, imagePalBuffer;
-    private int[] scanline1 = new int[256];
-    private int[] scanline2 = new int[256];
     private static final int redMask = 0xff0000;
     private static final int greenMask = 0x00ff00;
     private static final int blueMask = 0x0000ff;
-
-    private int tableYUV[][] = new int[3][32];
+    private static final int noMask = 0xffffffff;
+    // La máscara de cada pixel de un bloque de zoom x zoom, por zoom
+    private static final int rgbMasks[][][] = {
+        null,
+        null,
+        {
+            { redMask, greenMask },
+            { blueMask, noMask }
+        },
+        {
+            { noMask, greenMask, blueMask },
+            { greenMask, redMask, noMask },
+            { noMask, blueMask, redMask }
+        },
+        {
+            { redMask, redMask, greenMask, greenMask },
+            { redMask, redMask, greenMask, greenMask },
+            { blueMask, blueMask, noMask, noMask },
+            { blueMask, blueMask, noMask, noMask }
+        }
+    };
+    // Los filtros se reparten entre todos los núcleos, en franjas de
+    // STRIP_LINES líneas de la imagen sin ampliar
+    private static final ForkJoinPool FILTER_POOL =
+        new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+    private static final int STRIP_LINES = 8;
+    private static final int FUSED_STEP = 0;
+    private static final int PAL_STEP = 1;
+    private static final int MASK_STEP = 2;
+    private static final PixelKernels kernels = PixelKernels.getDefault();
+    // Lo que leen bilineal y bicúbico más allá de cada pixel
+    private static final int SMOOTH_MARGIN = 2;
+
+    // El filtro PAL trabaja con los 16 colores del modelo y los 64 de la
+    // ULAplus. palSlot() lleva de cada color a su número en palColors con una
+    // tabla hash (palKeys es el color de cada hueco, o -1 si está libre) y
+    // palLut guarda el resultado de cada trío de colores vecinos, o -1 si
+    // aún no se ha calculado. Todo se rehace cuando cambia paletteVersion.
+    private static final int PAL_COLORS = 16 + 64;
+    private static final int PAL_HASH_MASK = 0xff;
+    private final int palColors[] = new int[PAL_COLORS];
+    private final int palKeys[] = new int[PAL_HASH_MASK + 1];
+    private final int palSlots[] = new int[PAL_HASH_MASK + 1];
+    private final int palLut[] = new int[PAL_COLORS * PAL_COLORS * PAL_COLORS];
+    private boolean palLoaded;
+    private int paletteVersion;
+    private int tableYUV[][] = new int[3][PAL_COLORS];
     private static final int Yuv = 0;
     private static final int yUv = 1;
     private static final int yuV = 2;
+    // La zona de la imagen sin ampliar que toca el repintado en curso
+    private int firstDirty, lastDirty, firstDirtyCol, lastDirtyCol;
+
+    // Con AcceleratedScreen, los repaint() de la emulación se juntan en
+    // pendingArea hasta que el EDT presenta el frame. presentedImage es la
+    // imagen que se presentó la última vez; si cambia, se presenta entera.
+    private volatile AcceleratedScreen accelerated;
+    private final Rectangle pendingArea = new Rectangle();
+    private final Rectangle presentArea = new Rectangle();
+    private boolean presentPending;
+    private final Runnable presentTask = () -> presentAccelerated(false);
+    private int presentedImage = NO_IMAGE;
+    private static final int NO_IMAGE = 0;
+    private static final int FRAME_IMAGE = 1;
+    private static final int PAL_IMAGE = 2;
+    private static final int FILTERED_IMAGE = 3;
     
     // Estos miembros solo cambian cuando cambia el tamaño del borde
     private int LEFT_BORDER = 32;
@@ -71,26 +143,18 @@ public class JSpeccyScreen extends javax.swing.JComponent {
                 ((DataBufferInt) tvPalImage.getRaster().getDataBuffer()).getBankData()[0];
         
         interpolationMethod = RenderingHints.VALUE_INTERPOLATION_NEAREST_NEIGHBOR;
-        
-        scanline1 [0] = scanline2 [0] = 0; // scanline3 [0] = 0;
-        for (int color = 1; color < scanline1 .length; color++) {
-            scanline1 [color] = (int)(color * 0.80f);
-            scanline2 [color] = (int)(color * 0.70f);
-        }
-        
-        int yuv[] = new int[3];
-        for (int color = 0; color < Spectrum.Paleta.length; color++) {
-            int rgb = Spectrum.Paleta[color];
-            rgb2yuv(rgb, yuv);
-            rgb %= 31;
-            tableYUV[Yuv][rgb] = yuv[0];
-            tableYUV[yUv][rgb] = yuv[1];
-            tableYUV[yuV][rgb] = yuv[2];
-        }
     }
 
-    public void setTvImage(BufferedImage bImage) {
-        tvImage = bImage;
+    public void setSpectrum(Spectrum spectrum) {
+        this.spectrum = spectrum;
+    }
+
+    public void setTvFrames(TripleBuffer frames) {
+        tvFrames = frames;
+    }
+
+    public void setFrameMetrics(FrameMetrics metrics) {
+        this.metrics = metrics;
     }
 
     public void setZoom(int zoom) {
@@ -104,6 +168,7 @@ public class JSpeccyScreen extends javax.swing.JComponent {
             zoom = 4;
         
         this.zoom = zoom;
+        presentedImage = NO_IMAGE;
         
         screenWidth = SCREEN_WIDTH * zoom;
         screenHeight = SCREEN_HEIGHT * zoom;
@@ -137,6 +202,7 @@ public class JSpeccyScreen extends javax.swing.JComponent {
             return;
 
         borderMode = mode;
+        presentedImage = NO_IMAGE;
 
         switch(mode) {
             case 0: // no border
@@ -192,265 +258,409 @@ public class JSpeccyScreen extends javax.swing.JComponent {
         return borderMode;
     }
 
+    /**
+     * Presenta los frames con AcceleratedScreen en vez de con el repintado de
+     * Swing. Si la tarjeta gráfica no acelera las VolatileImage, o más tarde
+     * el BufferStrategy falla, se queda (o vuelve) el repintado de Swing.
+     *
+     * @param enabled si se quiere la presentación acelerada
+     */
+    public void setAccelerated(boolean enabled) {
+        if (enabled == (accelerated != null)) {
+            return;
+        }
+
+        if (!enabled) {
+            remove(accelerated);
+            accelerated = null;
+            super.repaint();
+            return;
+        }
+
+        if (!AcceleratedScreen.isSupported()) {
+            Logger.getLogger(JSpeccyScreen.class.getName()).log(Level.INFO,
+                "No accelerated VolatileImage, using the Swing repaint");
+            return;
+        }
+
+        setLayout(new BorderLayout());
+        presentedImage = NO_IMAGE;
+        accelerated = new AcceleratedScreen(this);
+        add(accelerated, BorderLayout.CENTER);
+        revalidate();
+    }
+
+    public boolean isAccelerated() {
+        return accelerated != null;
+    }
+
+    /*
+     * Los repaint() de la emulación (y los de Swing) van al RepaintManager o,
+     * con AcceleratedScreen, a pendingArea. Entonces la presentación queda
+     * pedida en el EDT una sola vez hasta que se hace.
+     */
     @Override
-    public void paintComponent(Graphics gc) {
-        //super.paintComponent(gc);
-        Graphics2D gc2 = (Graphics2D) gc;
-        
-        switch (zoom) {
-            case 2:    
-                if (anyFilter) {
-                    if (palFilter) {
-                        tvPalImageGc.drawImage(tvImage, 0, 0, null);
-                        palFilterYUV();
-                        tvImageFilteredGc.drawImage(tvPalImage, 0, 0, screenWidth, screenHeight, null);
-                    } else {
-                        tvImageFilteredGc.drawImage(tvImage, 0, 0, screenWidth, screenHeight, null);
-                    }
+    public void repaint(long tm, int x, int y, int width, int height) {
+        if (accelerated == null) {
+            super.repaint(tm, x, y, width, height);
+            return;
+        }
 
-                    if (scanlinesFilter)
-                        drawScanlines2x();
-                    
-                    if (rgbFilter)
-                        filterRGB2x();
-                    
-                    gc2.drawImage(tvImageFiltered, 0, 0, null);
-                } else {
-                    gc2.setRenderingHint(RenderingHints.KEY_INTERPOLATION, interpolationMethod);
-                    gc2.drawImage(tvImage, 0, 0, screenWidth, screenHeight, null);
-                }
-                break;
-            case 3:
-                if (anyFilter) {
-                    if (palFilter) {
-                        tvPalImageGc.drawImage(tvImage, 0, 0, null);
-                        palFilterYUV();
-                        tvImageFilteredGc.drawImage(tvPalImage, 0, 0, screenWidth, screenHeight, null);
-                    } else {
-                        tvImageFilteredGc.drawImage(tvImage, 0, 0, screenWidth, screenHeight, null);
-                    }
+        boolean request;
+        synchronized (pendingArea) {
+            if (presentPending) {
+                pendingArea.add(x, y);
+                pendingArea.add(x + width, y + height);
+            } else {
+                pendingArea.setBounds(x, y, width, height);
+            }
+            request = !presentPending;
+            presentPending = true;
+        }
 
-                    if (scanlinesFilter)
-                        drawScanlines3x();
-                    
-                    if (rgbFilter)
-                        filterRGB3x();
-                    
-                    gc2.drawImage(tvImageFiltered, 0, 0, null);
-                } else {
-                    gc2.setRenderingHint(RenderingHints.KEY_INTERPOLATION, interpolationMethod);
-                    gc2.drawImage(tvImage, 0, 0, screenWidth, screenHeight, null);
-                }
-                break;
-            case 4:
-                if (anyFilter) {
-                    if (palFilter) {
-                        tvPalImageGc.drawImage(tvImage, 0, 0, null);
-                        palFilterYUV();
-                        tvImageFilteredGc.drawImage(tvPalImage, 0, 0, screenWidth, screenHeight, null);
-                    } else {
-                        tvImageFilteredGc.drawImage(tvImage, 0, 0, screenWidth, screenHeight, null);
-                    }
+        if (request) {
+            EventQueue.invokeLater(presentTask);
+        }
+    }
 
-                    if (scanlinesFilter)
-                        drawScanlines4x();
-                    
-                    if (rgbFilter)
-                        filterRGB4x();
-                    
-                    gc2.drawImage(tvImageFiltered, 0, 0, null);
-                } else {
-                    gc2.setRenderingHint(RenderingHints.KEY_INTERPOLATION, interpolationMethod);
-                    gc2.drawImage(tvImage, 0, 0, screenWidth, screenHeight, null);
-                }
+    // Desde el EDT, cuando AcceleratedScreen tiene que pintarse entera
+    void presentAll() {
+        presentedImage = NO_IMAGE;
+        presentAccelerated(true);
+    }
+
+    /*
+     * Lo mismo que paintComponent, pero sin escalar en la CPU lo que puede
+     * escalar el pipeline: sólo las scanlines y la máscara RGB necesitan la
+     * imagen ya ampliada. La zona cambiada de la imagen que toque se sube a
+     * AcceleratedScreen y ésta la muestra entera.
+     */
+    private void presentAccelerated(boolean all) {
+        synchronized (pendingArea) {
+            if (!presentPending && !all) {
+                return;
+            }
+            presentArea.setBounds(pendingArea);
+            presentPending = false;
+        }
+
+        AcceleratedScreen screen = accelerated;
+        if (screen == null || tvFrames == null || !screen.isDisplayable()) {
+            return;
+        }
+
+        long start = System.nanoTime();
+        long filterTime = 0;
+        BufferedImage tvImage = tvFrames.getFrontImage();
+
+        int image = FRAME_IMAGE;
+        if (zoom > 1 && (scanlinesFilter || rgbFilter)) {
+            image = FILTERED_IMAGE;
+        } else if (palFilter) {
+            image = PAL_IMAGE;
+        }
+
+        // Las imágenes de los filtros sólo están al día en lo que se ha
+        // presentado con ellas
+        if (image != presentedImage) {
+            presentedImage = image;
+            setDirtyArea(null);
+        } else {
+            setDirtyArea(presentArea);
+        }
+
+        BufferedImage source = tvImage;
+        int scale = 1;
+        switch (image) {
+            case FILTERED_IMAGE:
+                filterZoomed(tvImage);
+                source = tvImageFiltered;
+                scale = zoom;
                 break;
-            default:
-                if (palFilter) {
-                    tvPalImageGc.drawImage(tvImage, 0, 0, null);
-                    palFilterYUV();
-                    gc2.drawImage(tvPalImage, 0, 0, null);
-                } else {
-                    gc2.drawImage(tvImage, 0, 0, null);
-                }
+            case PAL_IMAGE:
+                copyDirtyArea(tvImage, 0);
+                filterPal(0);
+                source = tvPalImage;
+        }
+        if (image != FRAME_IMAGE) {
+            filterTime = System.nanoTime() - start;
         }
-    }
-    
-    private void drawScanlines2x() {
 
-        int color = 0, res = 0;
-        
-        // Jump the first line
-        int pixel = screenWidth;
-        
-        while (pixel < imageBuffer.length) {
-            for (int col = 0; col < SCREEN_WIDTH; col++) {
-                
-                if (imageBuffer[pixel] == 0) {
-                    pixel += 2;
-                    continue;
-                }
-                
-                if (color != imageBuffer[pixel]) {
-                    color = imageBuffer[pixel];
-                    int red = scanline1 [color >>> 16];
-                    int green = scanline1 [(color >>> 8) & 0xff];
-                    int blue = scanline1 [color & 0xff];
-                    res = (red << 16) | (green << 8)  | blue;
-                }
-                
-                imageBuffer[pixel++] = res;
-                imageBuffer[pixel++] = res;
+        try {
+            if (!screen.present(source, firstDirtyCol * scale, firstDirty * scale,
+                lastDirtyCol * scale, lastDirty * scale, screenWidth, screenHeight,
+                interpolationMethod)) {
+                // No se ha visto; el siguiente va entero
+                presentedImage = NO_IMAGE;
             }
-            
-            // Jump the next line
-            pixel += screenWidth;
-        }        
+        } catch (IllegalStateException ex) {
+            Logger.getLogger(JSpeccyScreen.class.getName()).log(Level.WARNING,
+                "Accelerated screen failed, using the Swing repaint", ex);
+            setAccelerated(false);
+            return;
+        }
+
+        if (metrics != null) {
+            metrics.endPaint(System.nanoTime() - start, filterTime);
+        }
     }
-    
-    private void drawScanlines3x() {
-        int color = 0, res1 = 0, res2 = 0;
-        
-        int jump = screenWidth * 2;
-        
-        // Jump the first line
-        int pixel = screenWidth;
+
+    @Override
+    public void paintComponent(Graphics gc) {
+        //super.paintComponent(gc);
+        Graphics2D gc2 = (Graphics2D) gc;
+
+        // AcceleratedScreen la tapa entera
+        if (tvFrames == null || accelerated != null) {
+            return;
+        }
+
+        long start = System.nanoTime();
+        long filterTime = 0;
+
+        // El último frame que ha terminado la emulación; mientras se pinta,
+        // ella sigue con otro
+        BufferedImage tvImage = tvFrames.getFrontImage();
+
+        // Sólo hay que rehacer lo que se va a repintar. Lo de fuera de
+        // tvPalImage o de tvImageFiltered no se ve hasta que otro repintado
+        // lo toque, y entonces se rehace con el frame de ese momento.
+        setDirtyArea(gc2.getClipBounds());
         
-        while (pixel < imageBuffer.length) {
-            for (int col = 0; col < SCREEN_WIDTH; col++) {
-                
-                if (imageBuffer[pixel] == 0) {
-                    pixel += 3;
-                    continue;
-                }
-                
-                if (color != imageBuffer[pixel]) {
-                    color = imageBuffer[pixel];
-                    int red = color >>> 16;
-                    int green = (color >>> 8) & 0xff;
-                    int blue = color & 0xff;
-                    res1 = (scanline1[red] << 16) | (scanline1[green] << 8)  | scanline1[blue];
-                    res2 = (scanline2[red] << 16) | (scanline2[green] << 8)  | scanline2[blue];
-                }
-                
-                imageBuffer[pixel + screenWidth] = res2;
-                imageBuffer[pixel++] = res1;
-                
-                imageBuffer[pixel + screenWidth] = res2;
-                imageBuffer[pixel++] = res1;
-                
-                imageBuffer[pixel + screenWidth] = res2;
-                imageBuffer[pixel++] = res1;
+        if (zoom > 1) {
+            if (anyFilter) {
+                filterZoomed(tvImage);
+                filterTime = System.nanoTime() - start;
+                int x = firstDirtyCol * zoom;
+                int y = firstDirty * zoom;
+                int x2 = lastDirtyCol * zoom;
+                int y2 = lastDirty * zoom;
+                gc2.drawImage(tvImageFiltered, x, y, x2, y2, x, y, x2, y2, null);
+            } else {
+                // Java2D sólo escala lo que cae dentro del clip
+                gc2.setRenderingHint(RenderingHints.KEY_INTERPOLATION, interpolationMethod);
+                gc2.drawImage(tvImage, 0, 0, screenWidth, screenHeight, null);
             }
-            
-            pixel += jump;
+        } else {
+            if (palFilter) {
+                copyDirtyArea(tvImage, 0);
+                filterPal(0);
+                filterTime = System.nanoTime() - start;
+                gc2.drawImage(tvPalImage, firstDirtyCol, firstDirty, lastDirtyCol, lastDirty,
+                    firstDirtyCol, firstDirty, lastDirtyCol, lastDirty, null);
+            } else {
+                gc2.drawImage(tvImage, 0, 0, null);
+            }
+        }
+
+        // Lo que se va en los filtros incluye escalar a la imagen filtrada
+        if (metrics != null) {
+            metrics.endPaint(System.nanoTime() - start, filterTime);
         }
     }
-    
-    private void drawScanlines4x() {
-        int color = 0, res1 = 0, res2 = 0;
-        
-        int jump = screenWidth * 3;
-        
-        int pixel = screenWidth * 2;
-        
-        while (pixel < imageBuffer.length) {
-            for (int col = 0; col < SCREEN_WIDTH; col++) {
-                
-                if (imageBuffer[pixel] == 0) {
-                    pixel += 4;
-                    continue;
-                }
-                
-                if (color != imageBuffer[pixel]) {
-                    color = imageBuffer[pixel];
-                    int red = color >>> 16;
-                    int green = (color >>> 8) & 0xff;
-                    int blue = color & 0xff;
-                    res1 = (scanline1[red] << 16) | (scanline1[green] << 8)  | scanline1[blue];
-                    res2 = (scanline2[red] << 16) | (scanline2[green] << 8)  | scanline2[blue];
-                }
-                
-                imageBuffer[pixel + screenWidth] = res2;
-                imageBuffer[pixel++] = res1;
-                
-                imageBuffer[pixel + screenWidth] = res2;
-                imageBuffer[pixel++] = res1;
-                
-                imageBuffer[pixel + screenWidth] = res2;
-                imageBuffer[pixel++] = res1;
-                
-                imageBuffer[pixel + screenWidth] = res2;
-                imageBuffer[pixel++] = res1;
-            }
-            
-            pixel += jump;
+
+    // Los pixels de la imagen sin ampliar que cubre el clip, en bloques
+    // enteros de zoom x zoom
+    private void setDirtyArea(Rectangle clip) {
+        if (clip == null) {
+            firstDirtyCol = firstDirty = 0;
+            lastDirtyCol = SCREEN_WIDTH;
+            lastDirty = SCREEN_HEIGHT;
+            return;
+        }
+
+        firstDirtyCol = Math.max(clip.x / zoom, 0);
+        firstDirty = Math.max(clip.y / zoom, 0);
+        lastDirtyCol = Math.min((clip.x + clip.width + zoom - 1) / zoom, SCREEN_WIDTH);
+        lastDirty = Math.min((clip.y + clip.height + zoom - 1) / zoom, SCREEN_HEIGHT);
+        if (lastDirtyCol < firstDirtyCol || lastDirty < firstDirty) {
+            lastDirtyCol = firstDirtyCol;
+            lastDirty = firstDirty;
         }
     }
-    
-    private void filterRGB2x() {
 
-        int pixel = 0;
+    /*
+     * Copia del frame la zona a repintar más margin pixels alrededor, y uno
+     * más a los lados para que el PAL tenga los vecinos sin filtrar.
+     */
+    private void copyDirtyArea(BufferedImage tvImage, int margin) {
+        int x = Math.max(firstDirtyCol - margin - 1, 0);
+        int y = Math.max(firstDirty - margin, 0);
+        int x2 = Math.min(lastDirtyCol + margin + 1, SCREEN_WIDTH);
+        int y2 = Math.min(lastDirty + margin, SCREEN_HEIGHT);
+        tvPalImageGc.drawImage(tvImage, x, y, x2, y2, x, y, x2, y2, null);
+    }
 
-        while (pixel < imageBuffer.length) {
-            for (int col = 0; col < SCREEN_WIDTH; col++) {
-                imageBuffer[pixel + screenWidth] &= blueMask;
-                imageBuffer[pixel++] &= redMask;
-                imageBuffer[pixel++] &= greenMask;
-            }
-            pixel += screenWidth;
+    // El PAL, en la zona a repintar más margin pixels alrededor
+    private void filterPal(int margin) {
+        int first = Math.max(firstDirty - margin, TOP_BORDER);
+        int last = Math.min(lastDirty + margin, TOP_BORDER + 192);
+        int firstCol = Math.max(firstDirtyCol - margin, LEFT_BORDER + 1);
+        int lastCol = Math.min(lastDirtyCol + margin, LEFT_BORDER + 255);
+        if (first < last && firstCol < lastCol) {
+            updatePalette();
+            FILTER_POOL.invoke(new FilterStrip(PAL_STEP, first, last, firstCol, lastCol));
         }
     }
 
-    private void filterRGB3x() {
+    /*
+     * Los filtros de la pantalla ampliada. Con vecino más próximo, escalar
+     * es repetir cada pixel zoom x zoom veces, así que todo se hace en una
+     * pasada: cada línea de tvPalImage pasa por el PAL (que sólo lee los
+     * vecinos de la misma línea) y se escribe ya escalada en
+     * tvImageFiltered, con las scanlines o la máscara RGB. Con bilineal o
+     * bicúbico el escalado sigue siendo de Java2D, que lee las líneas de
+     * alrededor, así que el PAL tiene que estar terminado antes en toda la
+     * zona y va en su propio paso; las scanlines o la máscara van después.
+     * Cada paso se reparte por franjas de líneas en FILTER_POOL, y el EDT
+     * sólo espera y vuelca la imagen terminada.
+     *
+     * Todo se hace sólo en la zona a repintar. Bilineal y bicúbico leen
+     * hasta dos pixels más allá de cada uno, así que con ellos la copia y
+     * el PAL cubren SMOOTH_MARGIN pixels más, y Java2D escala con el clip
+     * puesto en la zona.
+     */
+    private void filterZoomed(BufferedImage tvImage) {
+        boolean smooth =
+            interpolationMethod != RenderingHints.VALUE_INTERPOLATION_NEAREST_NEIGHBOR;
+        int margin = smooth ? SMOOTH_MARGIN : 0;
 
-        int jump = screenWidth * 2;
+        copyDirtyArea(tvImage, margin);
 
-        int pixel = 0;
+        if (!smooth) {
+            if (palFilter) {
+                updatePalette();
+            }
+            FILTER_POOL.invoke(new FilterStrip(FUSED_STEP, firstDirty, lastDirty,
+                firstDirtyCol, lastDirtyCol));
+            return;
+        }
 
-        while (pixel < imageBuffer.length) {
-            for (int col = 0; col < SCREEN_WIDTH; col++) {
-                imageBuffer[pixel + screenWidth] &= greenMask;
-                pixel++;
+        if (palFilter) {
+            filterPal(margin);
+        }
+
+        tvImageFilteredGc.setClip(firstDirtyCol * zoom, firstDirty * zoom,
+            (lastDirtyCol - firstDirtyCol) * zoom, (lastDirty - firstDirty) * zoom);
+        tvImageFilteredGc.drawImage(tvPalImage, 0, 0, screenWidth, screenHeight, null);
+
+        if (scanlinesFilter || rgbFilter) {
+            FILTER_POOL.invoke(new FilterStrip(MASK_STEP, firstDirty, lastDirty,
+                firstDirtyCol, lastDirtyCol));
+        }
+    }
 
-                imageBuffer[pixel + screenWidth] &= redMask;
-                imageBuffer[pixel + jump] &= blueMask;
-                imageBuffer[pixel++] &= greenMask;
+    /*
+     * Un paso de los filtros sobre las líneas [first, last) y las columnas
+     * [firstCol, lastCol) de la imagen sin ampliar. Las franjas se parten
+     * por la mitad hasta STRIP_LINES líneas; ninguna toca los pixels de otra.
+     */
+    private final class FilterStrip extends RecursiveAction {
+
+        private final int step, first, last, firstCol, lastCol;
 
-                imageBuffer[pixel + jump] &= redMask;
-                imageBuffer[pixel++] &= blueMask;
+        FilterStrip(int step, int first, int last, int firstCol, int lastCol) {
+            this.step = step;
+            this.first = first;
+            this.last = last;
+            this.firstCol = firstCol;
+            this.lastCol = lastCol;
+        }
+
+        @Override
+        protected void compute() {
+            if (last - first > STRIP_LINES) {
+                int middle = (first + last) >>> 1;
+                invokeAll(new FilterStrip(step, first, middle, firstCol, lastCol),
+                    new FilterStrip(step, middle, last, firstCol, lastCol));
+                return;
+            }
+
+            switch (step) {
+                case FUSED_STEP:
+                    filterFused(first, last, firstCol, lastCol);
+                    break;
+                case PAL_STEP:
+                    palFilterYUV(first, last, firstCol, lastCol);
+                    break;
+                default:
+                    filterMasks(first, last, firstCol, lastCol);
             }
-            pixel += jump;
         }
     }
-    
-    private void filterRGB4x() {
 
-        int pixel = 0;
+    /*
+     * PAL, escalado y scanlines o máscara RGB de una vez. Lo que sale es lo
+     * mismo que pasando el PAL, escalando con Java2D y pasando luego cada
+     * filtro. Cada línea de la imagen ampliada es una llamada a
+     * PixelKernels.zoomLine.
+     */
+    private void filterFused(int first, int last, int firstCol, int lastCol) {
+        int masks[][] = rgbFilter ? rgbMasks[zoom] : null;
+        int scanline = zoom == 4 ? 2 : 1;
+        int count = lastCol - firstCol;
+
+        for (int line = first; line < last; line++) {
+            int src = line * SCREEN_WIDTH + firstCol;
+            int dst = (line * screenWidth + firstCol) * zoom;
 
-        int jump = screenWidth * 3;
+            if (palFilter) {
+                palLine(line, firstCol, lastCol);
+            }
+
+            for (int dy = 0; dy < zoom; dy++, dst += screenWidth) {
+                int shade = PixelKernels.NO_SHADE;
+                if (scanlinesFilter) {
+                    if (dy == scanline) {
+                        shade = PixelKernels.SHADE_LINE_1;
+                    } else if (dy == scanline + 1) {
+                        shade = PixelKernels.SHADE_LINE_2;
+                    }
+                }
+
+                kernels.zoomLine(imagePalBuffer, src, imageBuffer, dst, count, zoom,
+                    shade, masks != null ? masks[dy] : null);
+            }
+        }
+    }
 
-        while (pixel < imageBuffer.length) {
-            for (int col = 0; col < SCREEN_WIDTH; col++) {
-                imageBuffer[pixel] &= redMask;
-                imageBuffer[pixel + 1] &= redMask;
-                imageBuffer[pixel + screenWidth] &= redMask;
-                imageBuffer[pixel + screenWidth + 1] &= redMask;
-                
-                imageBuffer[pixel + screenWidth * 2] &= blueMask;
-                imageBuffer[pixel + screenWidth * 2 + 1] &= blueMask;
-                imageBuffer[pixel + screenWidth * 3] &= blueMask;
-                imageBuffer[pixel + screenWidth * 3 + 1] &= blueMask;
+    // El PAL de una línea, si es de la pantalla y no del borde
+    private void palLine(int line, int firstCol, int lastCol) {
+        if (line < TOP_BORDER || line >= TOP_BORDER + 192) {
+            return;
+        }
 
-                pixel += 2;
+        int from = Math.max(firstCol, LEFT_BORDER + 1);
+        int to = Math.min(lastCol, LEFT_BORDER + 255);
+        if (from < to) {
+            palFilterYUV(line, line + 1, from, to);
+        }
+    }
 
-                imageBuffer[pixel] &= greenMask;
-                imageBuffer[pixel + 1] &= greenMask;
-                imageBuffer[pixel + screenWidth] &= greenMask;
-                imageBuffer[pixel + screenWidth + 1] &= greenMask;
+    /*
+     * Scanlines o máscara RGB sobre la imagen ya escalada por Java2D. De
+     * cada bloque de zoom x zoom pixels las scanlines oscurecen una línea
+     * (x2) o dos (x3 y x4) con el color del primer pixel de la primera.
+     */
+    private void filterMasks(int first, int last, int firstCol, int lastCol) {
+        int masks[][] = rgbFilter ? rgbMasks[zoom] : null;
+        int scanline = zoom == 4 ? 2 : 1;
+        int blocks = lastCol - firstCol;
+
+        for (int line = first; line < last; line++) {
+            int pixel = (line * screenWidth + firstCol) * zoom;
+
+            if (scanlinesFilter) {
+                int dark = pixel + scanline * screenWidth;
+                kernels.shadeBlocks(imageBuffer, dark,
+                    scanline + 1 < zoom ? dark + screenWidth : -1, blocks, zoom);
+            }
 
-                pixel += 2;
+            if (masks != null) {
+                for (int dy = 0, dst = pixel; dy < zoom; dy++, dst += screenWidth) {
+                    kernels.maskLine(imageBuffer, dst, blocks, zoom, masks[dy]);
+                }
             }
-            pixel += jump;
         }
     }
 
@@ -525,32 +735,123 @@ public class JSpeccyScreen extends javax.swing.JComponent {
         return (r << 16) | (g << 8) | b;
     }
 
-    private void palFilterYUV() {
-        
-//        long ini = System.currentTimeMillis();
-        
-        int idx1, idx2, idx3;
-        
-        int start = TOP_BORDER * SCREEN_WIDTH + LEFT_BORDER;
-        int limit = (TOP_BORDER + 192) * SCREEN_WIDTH - RIGHT_BORDER - 1;
-        int pixel = 0;
-        
-        while (pixel < limit) {
-            pixel = start;
-            idx1 = imagePalBuffer[pixel++] % 31;
-            idx2 = imagePalBuffer[pixel] % 31;
-            for (int col = 0; col < 254; col++) {
-                idx3 = imagePalBuffer[pixel + 1] % 31;
-                imagePalBuffer[pixel++] = yuv2rgb(tableYUV[Yuv][idx2],
-                        (tableYUV[yUv][idx1] + 2 * tableYUV[yUv][idx2] + tableYUV[yUv][idx3]) >>> 2,
-                        (tableYUV[yuV][idx1] + 2 * tableYUV[yuV][idx2] + tableYUV[yuV][idx3]) >>> 2);
+    /*
+     * Pone al día las tablas del PAL si la paleta ha cambiado. Se llama
+     * desde el EDT antes de repartir el trabajo, así que las franjas las ven
+     * ya hechas.
+     */
+    private void updatePalette() {
+        int version = spectrum != null ? spectrum.getPaletteVersion() : 0;
+        if (palLoaded && version == paletteVersion) {
+            return;
+        }
+
+        palLoaded = true;
+        paletteVersion = version;
+        if (spectrum != null) {
+            spectrum.getPaletteColors(palColors);
+        } else {
+            System.arraycopy(Spectrum.Paleta48k, 0, palColors, 0, 16);
+        }
+
+        int yuv[] = new int[3];
+        Arrays.fill(palKeys, -1);
+        for (int color = 0; color < PAL_COLORS; color++) {
+            int rgb = palColors[color];
+            rgb2yuv(rgb, yuv);
+            tableYUV[Yuv][color] = yuv[0];
+            tableYUV[yUv][color] = yuv[1];
+            tableYUV[yuV][color] = yuv[2];
+
+            // Los colores repetidos se quedan con el primer número
+            int pos = hashColor(rgb);
+            while (palKeys[pos] != -1 && palKeys[pos] != rgb) {
+                pos = (pos + 1) & PAL_HASH_MASK;
+            }
+            if (palKeys[pos] == -1) {
+                palKeys[pos] = rgb;
+                palSlots[pos] = color;
+            }
+        }
+        Arrays.fill(palLut, -1);
+    }
+
+    private static int hashColor(int rgb) {
+        return (rgb * 0x9E3779B1) >>> 24;
+    }
+
+    // El número del color en palColors, o -1 si no está
+    private int palSlot(int rgb) {
+        int pos = hashColor(rgb);
+        while (palKeys[pos] != rgb) {
+            if (palKeys[pos] == -1) {
+                return -1;
+            }
+            pos = (pos + 1) & PAL_HASH_MASK;
+        }
+        return palSlots[pos];
+    }
+
+    // Un pixel con el PAL: su luminancia y el color mezclado con el de los
+    // de al lado
+    private int palYUV(int idx1, int idx2, int idx3) {
+        int key = (idx1 * PAL_COLORS + idx2) * PAL_COLORS + idx3;
+        int rgb = palLut[key];
+        if (rgb < 0) {
+            rgb = yuv2rgb(tableYUV[Yuv][idx2],
+                (tableYUV[yUv][idx1] + 2 * tableYUV[yUv][idx2] + tableYUV[yUv][idx3]) >>> 2,
+                (tableYUV[yuV][idx1] + 2 * tableYUV[yuV][idx2] + tableYUV[yuV][idx3]) >>> 2);
+            palLut[key] = rgb;
+        }
+        return rgb;
+    }
+
+    /*
+     * Lo mismo con colores que no están en la paleta, los que quedan en
+     * pantalla de antes de un cambio de la paleta ULAplus a mitad de frame.
+     */
+    private int palYUV(int left, int rgb, int right, int yuv[]) {
+        rgb2yuv(left, yuv);
+        int u = yuv[1], v = yuv[2];
+        rgb2yuv(right, yuv);
+        u += yuv[1];
+        v += yuv[2];
+        rgb2yuv(rgb, yuv);
+        return yuv2rgb(yuv[0], (u + 2 * yuv[1]) >>> 2, (v + 2 * yuv[2]) >>> 2);
+    }
+
+    /*
+     * El PAL sobre tvPalImage, en las líneas [first, last) y las columnas
+     * [firstCol, lastCol), que deben estar dentro de la pantalla sin los
+     * pixels de los extremos. Lee sin filtrar la columna de antes y la de
+     * después.
+     */
+    private void palFilterYUV(int first, int last, int firstCol, int lastCol) {
+        int yuv[] = null;
+
+        for (int line = first; line < last; line++) {
+            int pixel = line * SCREEN_WIDTH + firstCol - 1;
+            int left = imagePalBuffer[pixel++];
+            int rgb = imagePalBuffer[pixel];
+            int idx1 = palSlot(left);
+            int idx2 = palSlot(rgb);
+            for (int col = firstCol; col < lastCol; col++) {
+                int right = imagePalBuffer[pixel + 1];
+                int idx3 = palSlot(right);
+                if ((idx1 | idx2 | idx3) >= 0) {
+                    imagePalBuffer[pixel++] = palYUV(idx1, idx2, idx3);
+                } else {
+                    if (yuv == null) {
+                        yuv = new int[3];
+                    }
+                    imagePalBuffer[pixel++] = palYUV(left, rgb, right, yuv);
+                }
+                left = rgb;
+                rgb = right;
                 idx1 = idx2;
                 idx2 = idx3;
             }
-            start += SCREEN_WIDTH;
         }
-        
-//        System.out.println(String.format("PalFilterYUV in %d ms.", System.currentTimeMillis() - ini));
     }
     
     /** This method is called from within the constructor to
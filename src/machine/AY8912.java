@@ -120,11 +120,18 @@ public final class AY8912 {
     }
 
     public AY8912State getAY8912State() {
-        AY8912State state = new AY8912State();
+        return getAY8912State(new AY8912State());
+    }
+
+    // Como getAY8912State(), pero rellenando un estado ya creado
+    public AY8912State getAY8912State(AY8912State state) {
         state.setAddressLatch(addressLatch);
-        int regs[] = new int[16];
+        int regs[] = state.getRegAY();
+        if (regs == null) {
+            regs = new int[16];
+            state.setRegAY(regs);
+        }
         System.arraycopy(regAY, 0, regs, 0, regAY.length);
-        state.setRegAY(regs);
         return state;
     }
 
@@ -34,7 +34,7 @@ class Audio {
     private int soundMode, channels;
     private long timeRem, step;
     private MachineTypes spectrumModel;
-    private boolean enabledAY;
+    private boolean enabledAY, blocking, primed;
     private final AY8912Type settings;
     private AY8912 ay;
 
@@ -43,8 +43,15 @@ class Audio {
        line = null;
     }
     
-    synchronized void open(MachineTypes model, AY8912 ay8912, boolean hasAY, int freq) {
+    /*
+     * Con blocking, sendAudioFrame espera a que la tarjeta tome el frame
+     * entero y es ella la que marca el ritmo de la emulación. Sin él, el ritmo
+     * lo lleva el reloj del sistema y se envía sólo lo que cabe.
+     */
+    synchronized void open(MachineTypes model, AY8912 ay8912, boolean hasAY, int freq,
+            boolean blocking) {
         samplingFrequency = freq;
+        this.blocking = blocking;
         
         soundMode = settings.getSoundMode();
         if (soundMode < 0 || soundMode > 3)
@@ -102,12 +109,16 @@ class Audio {
              * comporte de manera errática, de modo que mejor lo evitamos.
              */
             try {
-                if (System.getProperty("os.name").contains("Linux")) {
+                if (!blocking) {
+                    // Margen para que los dos relojes no vayan a la par
+                    line.open(fmt, frameSize * 4);
+                } else if (System.getProperty("os.name").contains("Linux")) {
                     line.open(fmt, frameSize);
                 } else {
                     line.open(fmt, frameSize * 2);
                 }
                 line.start();
+                primed = false;
             } catch (LineUnavailableException ex) {
                 Logger.getLogger(Audio.class.getName()).log(Level.SEVERE, null, ex);
             }
@@ -171,13 +182,31 @@ class Audio {
     synchronized public void flush() {
         level = lastLevel = ptrBeeper = 0;
         timeRem = 0;
+        primed = false;
         if (line != null)
             line.flush();
     }
 
-    synchronized public void sendAudioFrame() {
-        if (line != null)
+    /*
+     * Devuelve true si la línea se había quedado sin nada que reproducir
+     * (un underrun), y se ha oído un corte. La primera vez tras abrirla o
+     * vaciarla no cuenta, está vacía porque sí.
+     */
+    synchronized public boolean sendAudioFrame() {
+        if (line == null)
+            return false;
+
+        boolean underrun = primed && line.available() >= line.getBufferSize();
+        primed = true;
+
+        if (blocking) {
             line.write(buf, 0, frameSize);
+        } else {
+            // Lo que no cabe se pierde; se corta en una muestra entera
+            int len = Math.min(line.available(), frameSize);
+            line.write(buf, 0, len - len % (2 * channels));
+        }
+        return underrun;
     }
 
     synchronized public void endFrame() {
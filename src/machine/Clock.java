@@ -4,6 +4,7 @@
  */
 package machine;
 
+import java.util.Arrays;
 import java.util.ConcurrentModificationException;
 import java.util.concurrent.CopyOnWriteArrayList;
 
@@ -12,21 +13,33 @@ import java.util.concurrent.CopyOnWriteArrayList;
  * @author jsanchez
  */
 public class Clock {
-    private static final Clock instance = new Clock();
     private MachineTypes spectrumModel = MachineTypes.SPECTRUM48K;
     private int tstates;
     private long frames;
-    private int timeout;
     private final CopyOnWriteArrayList<ClockTimeoutListener> clockListeners;
 
-    // Clock class implements a Singleton pattern.
-    private Clock() {
+    // Eventos programados: un montículo binario ordenado por el t-estado en
+    // que vencen, contado como tstates desde el principio del frame actual.
+    // Son pocos (los flancos de la cinta), así que con un array basta.
+    private int eventTstates[] = new int[8];
+    private ClockTimeoutListener eventAction[] = new ClockTimeoutListener[8];
+    private int nEvents;
+    // Límite del execute en curso y lo que antes llegue de él o del primer
+    // evento: la CPU sólo compara con deadline al final de cada instrucción.
+    private int limit = Integer.MAX_VALUE;
+    private int deadline = Integer.MAX_VALUE;
+    // Mientras se atiende un evento, el t-estado en que vencía
+    private boolean firing;
+    private int firedAt;
+    // El timeout de siempre es un evento más que avisa a los listeners
+    private final ClockTimeoutListener timeoutEvent = this::fireTimeout;
+
+    // Cada máquina tiene su propio reloj, que crea y comparte su bus
+    // (MemIoOps), para poder tener varias ejecutándose a la vez.
+    public Clock() {
         this.clockListeners = new CopyOnWriteArrayList<>();
     }
 
-    public static Clock getInstance() {
-        return instance;
-    }
     /**
      * Adds a new event listener to the list of event listeners.
      *
@@ -66,7 +79,7 @@ public class Clock {
         
         // When don't have listeners, disable any pending timeout
         if (clockListeners.isEmpty()) {
-            timeout = 0;
+            cancel(timeoutEvent);
         }
     }
 
@@ -93,36 +106,32 @@ public class Clock {
             tstates = 0;
         else
             tstates = states;
-        frames = timeout = 0;
+        frames = 0;
+        clearEvents();
     }
 
     public void addTstates(int states) {
         tstates += states;
-
-        if (timeout > 0) {
-            timeout -= states;
-
-            if (timeout <= 0) {
-                int res = timeout;
-                for (final ClockTimeoutListener listener : clockListeners) {
-                   listener.clockTimeout();
-                }
-                
-                if (timeout > 0) {
-//                    System.out.println("Timeout: " + timeout + " res: " + res);
-                    timeout += res;
-                }
-            }
-        }
     }
 
     public long getFrames() {
         return frames;
     }
 
-    public void endFrame() {
+    // Para volver a un frame anterior sin tocar los T-estados ni los eventos
+    public void setFrames(long frames) {
+        this.frames = frames;
+    }
+
+    public synchronized void endFrame() {
         frames++;
         tstates -= spectrumModel.tstatesFrame;
+
+        // Restar lo mismo a todos no cambia el orden del montículo
+        for (int idx = 0; idx < nEvents; idx++) {
+            eventTstates[idx] -= spectrumModel.tstatesFrame;
+        }
+        updateDeadline();
     }
 
     public long getAbsTstates() {
@@ -130,16 +139,166 @@ public class Clock {
     }
 
     public void reset() {
-        frames = timeout = tstates = 0;
+        frames = tstates = 0;
+        clearEvents();
     }
 
-    public void setTimeout(int ntstates) {
-        if (timeout > 0) {
+    /*
+     * El timeout cuenta desde ahora o, si lo programa un listener mientras se
+     * le avisa del anterior, desde el t-estado en que aquel vencía. Así no se
+     * acumula el retraso de atenderlo al final de una instrucción.
+     */
+    public synchronized void setTimeout(int ntstates) {
+        if (isScheduled(timeoutEvent)) {
             throw new ConcurrentModificationException("A timeout is in progress. Can't set another timeout!");
         }
 
-        timeout = ntstates > 10 ? ntstates : 10;
-    } 
+        schedule((firing ? firedAt : tstates) + (ntstates > 10 ? ntstates : 10), timeoutEvent);
+    }
+
+    /**
+     * Programa un evento para cuando el reloj llegue a un t-estado,
+     * contado desde el principio del frame actual. Puede caer en un frame
+     * posterior. Se atiende al final de la instrucción en la que se alcance.
+     *
+     * @param states el t-estado en que vence
+     * @param action a quién se avisa
+     */
+    public synchronized void schedule(int states, ClockTimeoutListener action) {
+        if (action == null) {
+            throw new NullPointerException("Error: Event action can't be null");
+        }
+
+        if (nEvents == eventTstates.length) {
+            eventTstates = Arrays.copyOf(eventTstates, nEvents * 2);
+            eventAction = Arrays.copyOf(eventAction, nEvents * 2);
+        }
+
+        int idx = nEvents++;
+        while (idx > 0 && eventTstates[(idx - 1) >>> 1] > states) {
+            int parent = (idx - 1) >>> 1;
+            eventTstates[idx] = eventTstates[parent];
+            eventAction[idx] = eventAction[parent];
+            idx = parent;
+        }
+        eventTstates[idx] = states;
+        eventAction[idx] = action;
+
+        updateDeadline();
+    }
+
+    /**
+     * Quita los eventos pendientes de action, si los hay.
+     *
+     * @param action a quién se iba a avisar
+     */
+    public synchronized void cancel(ClockTimeoutListener action) {
+        int idx = 0;
+        while (idx < nEvents) {
+            if (eventAction[idx] == action) {
+                removeEvent(idx);
+                idx = 0;
+            } else {
+                idx++;
+            }
+        }
+        updateDeadline();
+    }
+
+    public synchronized boolean isScheduled(ClockTimeoutListener action) {
+        for (int idx = 0; idx < nEvents; idx++) {
+            if (eventAction[idx] == action) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Lo que antes llegue del límite del execute en curso o del siguiente
+     * evento. Mientras tstates no lo alcance, no hay nada que atender.
+     *
+     * @return el t-estado de la siguiente parada
+     */
+    public int getDeadline() {
+        return deadline;
+    }
+
+    // Lo fija la CPU al empezar cada execute. Si otro hilo programa un evento
+    // a la vez, runEvents corrige el deadline al no encontrarlo vencido.
+    public void setLimit(int statesLimit) {
+        limit = statesLimit;
+        updateDeadline();
+    }
+
+    /**
+     * Avisa, por orden, a los eventos que ya han vencido. Los que programen
+     * ellos mismos y también hayan vencido se atienden en la misma llamada.
+     */
+    public synchronized void runEvents() {
+        while (nEvents > 0 && eventTstates[0] <= tstates) {
+            ClockTimeoutListener action = eventAction[0];
+            firedAt = eventTstates[0];
+            removeEvent(0);
+            firing = true;
+            try {
+                action.clockTimeout();
+            } finally {
+                firing = false;
+            }
+        }
+        updateDeadline();
+    }
+
+    private void fireTimeout() {
+        for (final ClockTimeoutListener listener : clockListeners) {
+            listener.clockTimeout();
+        }
+    }
+
+    private void removeEvent(int idx) {
+        int last = --nEvents;
+        int states = eventTstates[last];
+        ClockTimeoutListener action = eventAction[last];
+        eventAction[last] = null;
+
+        if (idx == last) {
+            return;
+        }
+
+        // Se sube o se baja el último hasta su sitio, empezando en idx
+        while (idx > 0 && eventTstates[(idx - 1) >>> 1] > states) {
+            int parent = (idx - 1) >>> 1;
+            eventTstates[idx] = eventTstates[parent];
+            eventAction[idx] = eventAction[parent];
+            idx = parent;
+        }
+
+        int child;
+        while ((child = 2 * idx + 1) < nEvents) {
+            if (child + 1 < nEvents && eventTstates[child + 1] < eventTstates[child]) {
+                child++;
+            }
+            if (eventTstates[child] >= states) {
+                break;
+            }
+            eventTstates[idx] = eventTstates[child];
+            eventAction[idx] = eventAction[child];
+            idx = child;
+        }
+        eventTstates[idx] = states;
+        eventAction[idx] = action;
+    }
+
+    private synchronized void clearEvents() {
+        Arrays.fill(eventAction, null);
+        nEvents = 0;
+        updateDeadline();
+    }
+
+    private void updateDeadline() {
+        deadline = nEvents > 0 && eventTstates[0] < limit ? eventTstates[0] : limit;
+    }
 
     @Override
     public String toString() {
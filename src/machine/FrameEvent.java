@@ -0,0 +1,49 @@
+/*
+ * FrameEvent: un frame de la emulación en Flight Recorder.
+ */
+package machine;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * Lo mismo que cuenta FrameMetrics, pero frame a frame, para verlo en JDK
+ * Mission Control junto a las pausas del GC o la compilación. Sólo se crea
+ * uno cuando alguna grabación tiene el evento activo.
+ *
+ * @author agent
+ */
+@Name("jspeccy.Frame")
+@Label("Frame")
+@Category("JSpeccy")
+@Description("Un frame del hilo de la emulación")
+@StackTrace(false)
+final class FrameEvent extends jdk.jfr.Event {
+
+    @Label("Emulation Time")
+    @Timespan(Timespan.NANOSECONDS)
+    long emulationTime;
+
+    @Label("Present Time")
+    @Description("Terminar el frame y pasarlo a la pantalla, o sólo el borde si se salta")
+    @Timespan(Timespan.NANOSECONDS)
+    long presentTime;
+
+    @Label("Audio Write Time")
+    @Timespan(Timespan.NANOSECONDS)
+    long audioWriteTime;
+
+    @Label("M1 Cycles")
+    @Description("Ciclos M1 ejecutados, con los prefijos y los del HALT")
+    long m1Cycles;
+
+    @Label("Presented")
+    boolean presented;
+
+    @Label("Audio Underrun")
+    boolean underrun;
+}
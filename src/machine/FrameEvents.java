@@ -0,0 +1,41 @@
+/*
+ * FrameEvents: los frames de FrameMetrics en Flight Recorder.
+ */
+package machine;
+
+import jdk.jfr.EventType;
+
+/**
+ * Lo único de FrameMetrics que necesita el módulo jdk.jfr. Está aparte para
+ * que, en un runtime sin él (un Java 8 sin Flight Recorder, un JRE hecho con
+ * jlink), lo que falle sea la carga de esta clase, y FrameMetrics siga con
+ * sus histogramas y su MBean.
+ *
+ * @author agent
+ */
+final class FrameEvents {
+
+    // Para no crear un FrameEvent por frame cuando nadie graba
+    private final EventType frameEvent = EventType.getEventType(FrameEvent.class);
+
+    FrameEvents() {
+    }
+
+    void commit(long emulationTime, long presentTime, long audioWriteTime,
+            boolean underrun, int m1Cycles, boolean presented) {
+        if (!frameEvent.isEnabled()) {
+            return;
+        }
+
+        FrameEvent event = new FrameEvent();
+        if (event.shouldCommit()) {
+            event.emulationTime = emulationTime;
+            event.presentTime = presentTime;
+            event.audioWriteTime = audioWriteTime;
+            event.m1Cycles = m1Cycles;
+            event.presented = presented;
+            event.underrun = underrun;
+            event.commit();
+        }
+    }
+}
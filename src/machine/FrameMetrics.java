@@ -0,0 +1,213 @@
+/*
+ * FrameMetrics: lo que cuesta cada frame.
+ */
+package machine;
+
+import java.lang.management.ManagementFactory;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Tiempos y contadores de cada frame, en histogramas para que medir no
+ * reserve memoria. El hilo de la emulación anota, al final de cada frame, lo
+ * que tardó en ejecutarse, lo que tardó en pasar a la pantalla, lo que esperó
+ * en el write de la línea de sonido y los ciclos M1 ejecutados. Los ciclos M1
+ * no son instrucciones: cada prefijo cuenta uno, y en HALT hay uno cada 4
+ * estados. El EDT anota lo que tarda en pintar y, de eso, lo que se va en los
+ * filtros.
+ *
+ * Con register() se publica como MBean en JSpeccy:type=FrameMetrics. Si una
+ * grabación de Flight Recorder tiene activo jspeccy.Frame, cada frame se
+ * anota además como un FrameEvent. Eso lo hace FrameEvents, que no se puede
+ * cargar si el runtime no tiene el módulo jdk.jfr; entonces no hay eventos,
+ * pero lo demás funciona igual.
+ *
+ * @author agent
+ */
+public final class FrameMetrics implements FrameMetricsMBean {
+
+    private static final String OBJECT_NAME = "JSpeccy:type=FrameMetrics";
+    private static final double MICROS = 1000.0;
+    // null sin Flight Recorder
+    private static final FrameEvents FRAME_EVENTS = loadFrameEvents();
+
+    // Del hilo de la emulación
+    private final Histogram emulation = new Histogram();
+    private final Histogram audioWrite = new Histogram();
+    private final Histogram m1Cycles = new Histogram();
+    private long skippedFrames, underruns;
+    // Del EDT
+    private final Histogram render = new Histogram();
+    private final Histogram filter = new Histogram();
+    // Lo que tardó el último repintado, para el salto de frames
+    private volatile long lastPaintTime;
+
+    FrameMetrics() {
+    }
+
+    private static FrameEvents loadFrameEvents() {
+        try {
+            return new FrameEvents();
+        } catch (LinkageError ex) {
+            // Sin el módulo jdk.jfr
+            return null;
+        }
+    }
+
+    public void register() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this,
+                new ObjectName(OBJECT_NAME));
+        } catch (JMException ex) {
+            Logger.getLogger(FrameMetrics.class.getName()).log(Level.WARNING, null, ex);
+        }
+    }
+
+    /*
+     * Un frame del hilo de la emulación. audioWrite es 0 si el sonido está
+     * desactivado, y entonces no cuenta.
+     */
+    void endFrame(long emulationTime, long presentTime, long audioWriteTime,
+            boolean underrun, int m1Cycles, boolean presented) {
+        emulation.record(emulationTime);
+        this.m1Cycles.record(m1Cycles);
+        if (audioWriteTime > 0) {
+            audioWrite.record(audioWriteTime);
+        }
+        if (underrun) {
+            underruns++;
+        }
+        if (!presented) {
+            skippedFrames++;
+        }
+
+        if (FRAME_EVENTS != null) {
+            FRAME_EVENTS.commit(emulationTime, presentTime, audioWriteTime,
+                underrun, m1Cycles, presented);
+        }
+    }
+
+    /**
+     * Un repintado de la pantalla, desde el EDT.
+     *
+     * @param renderTime lo que ha tardado entero, en ns
+     * @param filterTime lo que se ha ido en los filtros, en ns, o 0 si no hay
+     */
+    public void endPaint(long renderTime, long filterTime) {
+        lastPaintTime = renderTime;
+        render.record(renderTime);
+        if (filterTime > 0) {
+            filter.record(filterTime);
+        }
+    }
+
+    // Lo que tardó en pintar el EDT la última vez, en ns
+    long getLastPaintTime() {
+        return lastPaintTime;
+    }
+
+    @Override
+    public long getFrames() {
+        return emulation.getCount();
+    }
+
+    @Override
+    public long getSkippedFrames() {
+        return skippedFrames;
+    }
+
+    @Override
+    public long getAudioUnderruns() {
+        return underruns;
+    }
+
+    @Override
+    public long getM1Cycles() {
+        return m1Cycles.getSum();
+    }
+
+    @Override
+    public double getM1CyclesPerFrame() {
+        return m1Cycles.getMean();
+    }
+
+    @Override
+    public double getEmulationMeanMicros() {
+        return emulation.getMean() / MICROS;
+    }
+
+    @Override
+    public long getEmulationP99Micros() {
+        return micros(emulation.getPercentile(0.99));
+    }
+
+    @Override
+    public long getEmulationMaxMicros() {
+        return micros(emulation.getMax());
+    }
+
+    @Override
+    public double getRenderMeanMicros() {
+        return render.getMean() / MICROS;
+    }
+
+    @Override
+    public long getRenderP99Micros() {
+        return micros(render.getPercentile(0.99));
+    }
+
+    @Override
+    public long getRenderMaxMicros() {
+        return micros(render.getMax());
+    }
+
+    @Override
+    public double getFilterMeanMicros() {
+        return filter.getMean() / MICROS;
+    }
+
+    @Override
+    public long getFilterP99Micros() {
+        return micros(filter.getPercentile(0.99));
+    }
+
+    @Override
+    public long getFilterMaxMicros() {
+        return micros(filter.getMax());
+    }
+
+    @Override
+    public double getAudioWriteMeanMicros() {
+        return audioWrite.getMean() / MICROS;
+    }
+
+    @Override
+    public long getAudioWriteP99Micros() {
+        return micros(audioWrite.getPercentile(0.99));
+    }
+
+    @Override
+    public long getAudioWriteMaxMicros() {
+        return micros(audioWrite.getMax());
+    }
+
+    /*
+     * Como los histogramas los escriben otros hilos, algún frame que
+     * termine a la vez puede quedar contado a medias.
+     */
+    @Override
+    public void reset() {
+        emulation.reset();
+        audioWrite.reset();
+        m1Cycles.reset();
+        render.reset();
+        filter.reset();
+        skippedFrames = underruns = 0;
+    }
+
+    private static long micros(long nanos) {
+        return (nanos + 500) / 1000;
+    }
+}
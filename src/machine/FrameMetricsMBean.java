@@ -0,0 +1,50 @@
+/*
+ * FrameMetricsMBean: lo que FrameMetrics enseña por JMX.
+ */
+package machine;
+
+/**
+ * Atributos de FrameMetrics para JConsole, VisualVM o cualquier cliente JMX.
+ * Los tiempos van en microsegundos: media, percentil 99 y máximo desde el
+ * último reset.
+ *
+ * @author agent
+ */
+public interface FrameMetricsMBean {
+
+    long getFrames();
+
+    long getSkippedFrames();
+
+    long getAudioUnderruns();
+
+    long getM1Cycles();
+
+    double getM1CyclesPerFrame();
+
+    double getEmulationMeanMicros();
+
+    long getEmulationP99Micros();
+
+    long getEmulationMaxMicros();
+
+    double getRenderMeanMicros();
+
+    long getRenderP99Micros();
+
+    long getRenderMaxMicros();
+
+    double getFilterMeanMicros();
+
+    long getFilterP99Micros();
+
+    long getFilterMaxMicros();
+
+    double getAudioWriteMeanMicros();
+
+    long getAudioWriteP99Micros();
+
+    long getAudioWriteMaxMicros();
+
+    void reset();
+}
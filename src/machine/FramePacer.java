@@ -0,0 +1,73 @@
+/*
+ * FramePacer: el ritmo de los frames con el reloj del sistema.
+ */
+package machine;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Cuando la tarjeta de sonido no marca el ritmo, la emulación espera aquí a
+ * que llegue la hora de empezar el siguiente frame. Un frame dura lo mismo
+ * que en el modelo real, tstatesFrame / clockFreq: 50.08 Hz el 48K y 50.02 Hz
+ * el 128K. La hora de cada frame se cuenta desde la que le tocaba al
+ * anterior, no desde la hora en que empezó de verdad, así que lo que se
+ * retrase un frame se recupera en los siguientes y el ritmo no deriva. Si el
+ * retraso pasa de MAX_DELAY (la emulación ha estado parada, o la máquina
+ * no da para más) se olvida y se vuelve a contar desde ahora.
+ *
+ * @author agent
+ */
+final class FramePacer {
+
+    private static final long NANOS_PER_SECOND = 1000000000L;
+    private static final long MAX_DELAY = 100000000L;
+
+    // Un frame no dura un número entero de ns: la parte entera va en
+    // period y el resto, en unidades de 1/clockFreq ns, se acumula en
+    // fraction hasta que suma un ns más.
+    private long period, periodFraction, fraction;
+    private int clockFreq;
+    private long deadline;
+
+    void setSpectrumModel(MachineTypes model) {
+        long nanos = model.tstatesFrame * NANOS_PER_SECOND;
+        clockFreq = model.clockFreq;
+        period = nanos / clockFreq;
+        periodFraction = nanos % clockFreq;
+        reset();
+    }
+
+    // Lo que dura un frame, en ns
+    long getPeriod() {
+        return period;
+    }
+
+    // El siguiente frame empieza dentro de un frame
+    void reset() {
+        deadline = System.nanoTime() + period;
+        fraction = 0;
+    }
+
+    // Vuelve cuando es la hora de empezar el siguiente frame
+    void await() {
+        long now = System.nanoTime();
+        if (now - deadline > MAX_DELAY) {
+            deadline = now;
+            fraction = 0;
+        }
+
+        // parkNanos puede volver antes de tiempo
+        long delay;
+        while ((delay = deadline - now) > 0) {
+            LockSupport.parkNanos(delay);
+            now = System.nanoTime();
+        }
+
+        deadline += period;
+        fraction += periodFraction;
+        if (fraction >= clockFreq) {
+            fraction -= clockFreq;
+            deadline++;
+        }
+    }
+}
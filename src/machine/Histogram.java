@@ -0,0 +1,116 @@
+/*
+ * Histogram: distribución de valores sin reservar memoria.
+ */
+package machine;
+
+import java.util.Arrays;
+
+/**
+ * Cuenta valores enteros no negativos (tiempos en ns, instrucciones...) en
+ * cubetas de tamaño creciente: los valores menores que 16 tienen cada uno la
+ * suya y, a partir de ahí, cada potencia de dos se parte en 8 cubetas
+ * iguales, así que un valor se sabe con un error de menos del 12.5%. Todas
+ * las cubetas están reservadas desde el principio y registrar un valor es
+ * sumar en un array.
+ *
+ * Lo escribe un único hilo. Se puede leer desde otro mientras se escribe,
+ * a costa de que la lectura no cuadre del todo con el último valor; para
+ * estadística da igual.
+ *
+ * @author agent
+ */
+public final class Histogram {
+
+    private static final int SUB_BITS = 3;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+    // Con valores de hasta 2^63 - 1, la última cubeta es la 487
+    private static final int BUCKETS = (63 - SUB_BITS + 1) * SUB_COUNT;
+
+    private final long counts[] = new long[BUCKETS];
+    private long count, sum, max;
+
+    Histogram() {
+    }
+
+    void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        counts[bucketOf(value)]++;
+        count++;
+        sum += value;
+        if (value > max) {
+            max = value;
+        }
+    }
+
+    void reset() {
+        Arrays.fill(counts, 0);
+        count = sum = max = 0;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public long getSum() {
+        return sum;
+    }
+
+    public long getMax() {
+        return max;
+    }
+
+    public double getMean() {
+        long n = count;
+        return n == 0 ? 0 : (double) sum / n;
+    }
+
+    /**
+     * El valor por debajo del cual queda la fracción dada de los registrados,
+     * redondeado al final de su cubeta.
+     *
+     * @param fraction entre 0 y 1 (0.99 es el percentil 99)
+     * @return el valor, o 0 si no hay ninguno
+     */
+    public long getPercentile(double fraction) {
+        long n = count;
+        if (n == 0) {
+            return 0;
+        }
+
+        long rank = (long) Math.ceil(n * fraction);
+        if (rank < 1) {
+            rank = 1;
+        }
+
+        long seen = 0;
+        for (int bucket = 0; bucket < BUCKETS; bucket++) {
+            seen += counts[bucket];
+            if (seen >= rank) {
+                return Math.min(highestOf(bucket), max);
+            }
+        }
+        return max;
+    }
+
+    // Los 4 bits altos del valor: el exponente elige el grupo y los 3 de
+    // debajo del más alto, la cubeta dentro de él
+    private static int bucketOf(long value) {
+        if (value < 2 * SUB_COUNT) {
+            return (int) value;
+        }
+        int exp = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (exp - SUB_BITS)) & (SUB_COUNT - 1);
+        return ((exp - SUB_BITS + 1) << SUB_BITS) | sub;
+    }
+
+    private static long highestOf(int bucket) {
+        if (bucket < 2 * SUB_COUNT) {
+            return bucket;
+        }
+        int shift = (bucket >>> SUB_BITS) - 1;
+        long lowest = (long) (SUB_COUNT | (bucket & (SUB_COUNT - 1))) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+}
@@ -45,8 +45,8 @@ public class Interface1 {
     
     private final ArrayList<Interface1DriveListener> driveListeners = new ArrayList<>();
     
-    public Interface1(Interface1Type if1settings) {
-        clock = Clock.getInstance();
+    public Interface1(Interface1Type if1settings, Clock clock) {
+        this.clock = clock;
         settings = if1settings;
         mdrFlipFlop = 0;
         mdrSelected = 0;
@@ -54,7 +54,7 @@ public class Interface1 {
         
         microdrive = new Microdrive[8];
         for (int mdr = 0; mdr < 8; mdr++)
-            microdrive[mdr] = new Microdrive();
+            microdrive[mdr] = new Microdrive(clock);
         
         commsClk = false;
         lan = 0;
@@ -26,6 +26,8 @@ import tv.porst.jhexview.IDataChangedListener;
 public final class Memory {
 
     private final int PAGE_SIZE = 0x2000;
+    // Bancos que devuelve getRamBank
+    public static final int RAM_BANKS = 17;
     private final byte[][] Rom48k = new byte[2][PAGE_SIZE];
     private final byte[][] IF2Rom = new byte[2][PAGE_SIZE];
     private final byte[][] Rom128k = new byte[4][PAGE_SIZE];
@@ -73,7 +75,7 @@ public final class Memory {
     }
 
     public MemoryState getMemoryState() {
-        MemoryState state = new MemoryState();
+        MemoryState state = getPagingState();
 
         switch (spectrumModel) {
             case SPECTRUM16K:
@@ -96,26 +98,32 @@ public final class Memory {
                 }
         }
 
-        state.setIF2RomPaged(IF2RomPaged);
         if (IF2RomPaged) {
             state.setIF2Rom(saveIF2Rom());
         }
 
-        state.setMf128on48k(settings.getSpectrumSettings().isMf128On48K());
         state.setMultifaceRam(saveMFRam());
+
+        return state;
+    }
+
+    // Lo que está paginado, sin copiar la RAM ni la ROM del IF2
+    public MemoryState getPagingState() {
+        return getPagingState(new MemoryState());
+    }
+
+    // Como getPagingState(), pero rellenando un estado ya creado
+    public MemoryState getPagingState(MemoryState state) {
+        state.setIF2RomPaged(IF2RomPaged);
+        state.setMf128on48k(settings.getSpectrumSettings().isMf128On48K());
         state.setMultifacePaged(multifacePaged);
         state.setMultifaceLocked(multifaceLocked);
-
         state.setIF1RomPaged(IF1RomPaged);
 
         return state;
     }
-    
-    public void setMemoryState(MemoryState state) {
 
-        if (IF2RomPaged) {
-            extractIF2Rom();
-        }
+    public void setMemoryState(MemoryState state) {
 
         switch (spectrumModel) {
             case SPECTRUM16K:
@@ -140,8 +148,25 @@ public final class Memory {
                 }
         }
 
+        setPagingState(state);
+    }
+
+    /*
+     * La otra mitad de setMemoryState. Si el estado no trae la ROM del IF2,
+     * se vuelve a paginar la que ya estaba cargada.
+     */
+    public void setPagingState(MemoryState state) {
+
+        if (IF2RomPaged) {
+            extractIF2Rom();
+        }
+
         if (state.isIF2RomPaged() && spectrumModel.codeModel != MachineTypes.CodeModel.SPECTRUMPLUS3) {
-            loadIF2Rom(state.getIF2Rom());
+            if (state.getIF2Rom() != null) {
+                loadIF2Rom(state.getIF2Rom());
+            } else {
+                IF2RomPaged = true;
+            }
             readPages[0] = IF2Rom[0];
             readPages[1] = IF2Rom[1];
         }
@@ -162,10 +187,20 @@ public final class Memory {
         }
     }
     
+    // Los 16 bancos de 8K de la RAM y el de la RAM del Multiface
+    public byte[] getRamBank(int bank) {
+        return bank < Ram.length ? Ram[bank] : mfRAM;
+    }
+
     public byte readScreenByte(int address) {
         return Ram[screenPage][address];
     }
 
+    // Copia de los 6912 bytes de la pantalla visible
+    public void copyScreen(byte screen[]) {
+        System.arraycopy(Ram[screenPage], 0, screen, 0, 6912);
+    }
+
     public byte readByte(int address) {
         return readPages[address >>> 13][address & 0x1fff];
     }
@@ -174,6 +209,80 @@ public final class Memory {
         writePages[address >>> 13][address & 0x1fff] = value;
     }
 
+    /*
+     * Copia length bytes como lo haría LDIR (increment) o LDDR, uno a uno en
+     * el sentido de la copia, sin cruzar 0xFFFF/0x0000. Se hace con
+     * System.arraycopy por tramos que no salen de una página de 8K, salvo
+     * cuando origen y destino son la misma página y se solapan de modo que
+     * la copia se propaga (el clásico LDIR con DE = HL + 1 para rellenar).
+     */
+    public void copyBlock(int from, int to, int length, boolean increment) {
+        while (length > 0) {
+            byte src[] = readPages[from >>> 13];
+            byte dst[] = writePages[to >>> 13];
+            int srcOffset = from & 0x1fff;
+            int dstOffset = to & 0x1fff;
+            int chunk;
+            boolean propagates;
+
+            if (increment) {
+                chunk = Math.min(length, Math.min(PAGE_SIZE - srcOffset, PAGE_SIZE - dstOffset));
+                propagates = src == dst && dstOffset > srcOffset && dstOffset < srcOffset + chunk;
+                from += chunk;
+                to += chunk;
+            } else {
+                chunk = Math.min(length, Math.min(srcOffset + 1, dstOffset + 1));
+                srcOffset -= chunk - 1;
+                dstOffset -= chunk - 1;
+                propagates = src == dst && dstOffset < srcOffset && dstOffset + chunk > srcOffset;
+                from -= chunk;
+                to -= chunk;
+            }
+
+            if (!propagates) {
+                System.arraycopy(src, srcOffset, dst, dstOffset, chunk);
+            } else if (increment) {
+                for (int idx = 0; idx < chunk; idx++) {
+                    dst[dstOffset + idx] = src[srcOffset + idx];
+                }
+            } else {
+                for (int idx = chunk - 1; idx >= 0; idx--) {
+                    dst[dstOffset + idx] = src[srcOffset + idx];
+                }
+            }
+
+            length -= chunk;
+        }
+    }
+
+    /*
+     * Cuántos de los length bytes que LDIR/LDDR escribiría a partir de to se
+     * pueden escribir sin tocar el byte que se lee en address. Se compara
+     * por páginas físicas, porque el mismo banco puede verse en dos tramos
+     * (el 2 en 0x8000 y en 0xC000, por ejemplo).
+     */
+    public int writableLength(int to, int length, boolean increment, int address) {
+        byte page[] = readPages[address >>> 13];
+        int offset = address & 0x1fff;
+
+        for (int slot = 0; slot < writePages.length; slot++) {
+            if (writePages[slot] == page) {
+                int alias = (slot << 13) | offset;
+                int distance = increment ? alias - to : to - alias;
+                if (distance >= 0 && distance < length) {
+                    length = distance;
+                }
+            }
+        }
+
+        return length;
+    }
+
+    // Página física de 8K de la que se lee en esa dirección
+    public byte[] getReadPage(int address) {
+        return readPages[address >>> 13];
+    }
+
     public byte readByte(int page, int address) {
         page <<= 1;
         if (address < PAGE_SIZE) {
@@ -0,0 +1,185 @@
+/*
+ * PixelKernels: los bucles por pixel de la pantalla y de sus filtros.
+ */
+package machine;
+
+/**
+ * Los bucles que transforman pixels uno a uno: expandir un byte de la
+ * pantalla a 8 pixels, ampliar una línea con scanlines y máscara RGB, y las
+ * scanlines y la máscara sobre la imagen ya ampliada por Java2D. Esta clase
+ * los hace pixel a pixel. Con Java 16 o posterior y el módulo
+ * jdk.incubator.vector cargado (--add-modules jdk.incubator.vector),
+ * getDefault() devuelve VectorPixelKernels, que los hace con la Vector API.
+ * Esa clase se compila aparte, desde la carpeta vector, y si no está o no
+ * se puede cargar se usan éstos. Con -Djspeccy.vector=false se usan éstos
+ * siempre.
+ *
+ * Las dos versiones dan exactamente los mismos pixels.
+ *
+ * @author agent
+ */
+public class PixelKernels {
+
+    // Lo que oscurecen la primera y la segunda scanline de cada bloque
+    private static final float SHADE_1 = 0.80f;
+    private static final float SHADE_2 = 0.70f;
+    public static final int NO_SHADE = 0;
+    public static final int SHADE_LINE_1 = 1;
+    public static final int SHADE_LINE_2 = 2;
+
+    private static final int shades[][] = new int[3][256];
+
+    static {
+        for (int color = 1; color < 256; color++) {
+            shades[SHADE_LINE_1][color] = (int) (color * SHADE_1);
+            shades[SHADE_LINE_2][color] = (int) (color * SHADE_2);
+        }
+    }
+
+    private static final PixelKernels scalar = new PixelKernels();
+    private static final PixelKernels vector = loadVector();
+    private static final PixelKernels defaults =
+        vector != null && !"false".equals(System.getProperty("jspeccy.vector"))
+            ? vector : scalar;
+
+    protected PixelKernels() {
+    }
+
+    private static PixelKernels loadVector() {
+        try {
+            return (PixelKernels) Class.forName("machine.VectorPixelKernels")
+                .getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | LinkageError ex) {
+            // Sin la clase, sin Java 16 o sin el módulo jdk.incubator.vector
+            return null;
+        }
+    }
+
+    /**
+     * @return los kernels con la Vector API si se pueden usar y no se han
+     * desactivado, y si no los de esta clase
+     */
+    public static PixelKernels getDefault() {
+        return defaults;
+    }
+
+    public static PixelKernels getScalar() {
+        return scalar;
+    }
+
+    /**
+     * @return los kernels con la Vector API, o null si no se pueden usar
+     */
+    public static PixelKernels getVector() {
+        return vector;
+    }
+
+    public String getName() {
+        return "scalar";
+    }
+
+    /**
+     * Los 8 pixels de un byte de la pantalla, del bit 7 al 0.
+     *
+     * @param dst la imagen
+     * @param offset el primer pixel
+     * @param scrByte el byte
+     * @param ink el color de los bits a 1
+     * @param paper el color de los bits a 0
+     */
+    public void expandByte(int dst[], int offset, int scrByte, int ink, int paper) {
+        for (int mask = 0x80; mask != 0; mask >>= 1) {
+            if ((scrByte & mask) != 0) {
+                dst[offset++] = ink;
+            } else {
+                dst[offset++] = paper;
+            }
+        }
+    }
+
+    /**
+     * Una línea de la imagen ampliada: cada uno de los count pixels de src
+     * se repite zoom veces en dst, oscurecido según shade y con el pixel dx
+     * de cada bloque y-ado con mask[dx].
+     *
+     * @param shade NO_SHADE, SHADE_LINE_1 o SHADE_LINE_2
+     * @param mask las zoom máscaras de la línea, o null para no enmascarar
+     */
+    public void zoomLine(int src[], int srcPos, int dst[], int dstPos, int count,
+            int zoom, int shade, int mask[]) {
+        int table[] = shade != NO_SHADE ? shades[shade] : null;
+        int color = 0, dark = 0;
+
+        for (int end = srcPos + count; srcPos < end; srcPos++) {
+            int rgb = src[srcPos];
+
+            if (table != null) {
+                if (rgb != color) {
+                    color = rgb;
+                    dark = shade(rgb, table);
+                }
+                rgb = dark;
+            }
+
+            if (mask != null) {
+                for (int dx = 0; dx < zoom; dx++) {
+                    dst[dstPos++] = rgb & mask[dx];
+                }
+            } else {
+                for (int dx = 0; dx < zoom; dx++) {
+                    dst[dstPos++] = rgb;
+                }
+            }
+        }
+    }
+
+    /**
+     * Las scanlines de blocks bloques de zoom pixels ya ampliados: si el
+     * primer pixel del bloque en la línea pos no es negro, el bloque entero
+     * toma su color oscurecido como la primera scanline y, si nextPos no es
+     * negativo, el de la línea nextPos como la segunda.
+     */
+    public void shadeBlocks(int buf[], int pos, int nextPos, int blocks, int zoom) {
+        boolean next = nextPos >= 0;
+        int color = 0, dark1 = 0, dark2 = 0;
+
+        for (int block = 0; block < blocks; block++, pos += zoom, nextPos += zoom) {
+            int rgb = buf[pos];
+            if (rgb == 0) {
+                continue;
+            }
+
+            if (rgb != color) {
+                color = rgb;
+                dark1 = shade(rgb, shades[SHADE_LINE_1]);
+                dark2 = shade(rgb, shades[SHADE_LINE_2]);
+            }
+
+            for (int dx = 0; dx < zoom; dx++) {
+                buf[pos + dx] = dark1;
+            }
+            if (next) {
+                for (int dx = 0; dx < zoom; dx++) {
+                    buf[nextPos + dx] = dark2;
+                }
+            }
+        }
+    }
+
+    /**
+     * Y-a los blocks bloques de zoom pixels de la línea pos con las zoom
+     * máscaras de mask.
+     */
+    public void maskLine(int buf[], int pos, int blocks, int zoom, int mask[]) {
+        for (int block = 0; block < blocks; block++) {
+            for (int dx = 0; dx < zoom; dx++) {
+                buf[pos++] &= mask[dx];
+            }
+        }
+    }
+
+    private static int shade(int rgb, int table[]) {
+        return (table[rgb >>> 16] << 16) | (table[(rgb >>> 8) & 0xff] << 8)
+            | table[rgb & 0xff];
+    }
+}
@@ -0,0 +1,195 @@
+/*
+ * Rewind: el último minuto de la máquina, frame a frame.
+ */
+package machine;
+
+import snapshots.SpectrumState;
+
+/**
+ * Guarda al final de cada frame el estado de la máquina sin la RAM
+ * (Spectrum.getStateWithoutRam) y, de la RAM, sólo lo que ha cambiado desde el
+ * frame anterior. Para saberlo se mantiene una copia de los bancos de 8K tal
+ * como quedaron en el último frame guardado: los bancos que no coinciden
+ * son los sucios, y de ellos se guardan los tramos cambiados como XOR con la
+ * copia. El mismo XOR sirve para ir hacia delante y hacia atrás, así que al
+ * retroceder un frame se aplica a la copia y a la RAM, y la copia sigue
+ * siendo la del frame en que se está.
+ *
+ * Los cambios van seguidos en un búfer circular de tamaño fijo; los frames
+ * más antiguos se descartan cuando no caben o cuando hay más de FRAMES. Los
+ * SpectrumState de los frames descartados se reutilizan, así que, pasada la
+ * primera vuelta, guardar un frame no reserva memoria.
+ *
+ * Con el LEC conectado no se guarda nada: su RAM son 512K más.
+ *
+ * @author agent
+ */
+final class Rewind {
+
+    // Un minuto a 50 frames por segundo
+    private static final int FRAMES = 60 * 50;
+    private static final int POOL_SIZE = 1 << 24;
+    private static final int POOL_MASK = POOL_SIZE - 1;
+    private static final int BANK_SIZE = 0x2000;
+    // Dos tramos cambiados separados por menos de GAP bytes iguales se
+    // guardan como uno solo, sale más barato que otra cabecera.
+    private static final int GAP = 4;
+    // Lo más que ocupa un frame: cada tramo lleva 4 bytes de cabecera, entre
+    // dos tramos hay al menos GAP bytes sin cambios, y cada banco lleva su
+    // número y su marca de fin.
+    private static final int MAX_DELTA =
+        Memory.RAM_BANKS * (BANK_SIZE + 4 * (BANK_SIZE / (GAP + 1) + 1) + 3) + 1;
+    private static final int END_OF_BANK = 0xffff;
+    private static final int END_OF_FRAME = 0xff;
+
+    private final Spectrum spectrum;
+    private final Memory memory;
+    // La RAM tal como quedó en el último frame guardado
+    private final byte shadow[][] = new byte[Memory.RAM_BANKS][BANK_SIZE];
+    private final byte pool[] = new byte[POOL_SIZE];
+    // Por frame, su estado y dónde empiezan en pool los cambios respecto al
+    // anterior. Las posiciones crecen sin fin y se llevan a pool con
+    // POOL_MASK; como sólo se restan entre sí, da igual que den la vuelta.
+    private final SpectrumState states[] = new SpectrumState[FRAMES];
+    private final int deltaAt[] = new int[FRAMES];
+    private int oldest, frames, head, cursor;
+    private boolean synced;
+
+    Rewind(Spectrum spectrum, Memory memory) {
+        this.spectrum = spectrum;
+        this.memory = memory;
+    }
+
+    // Tras un reset, una carga o un cambio de modelo no hay vuelta atrás
+    void clear() {
+        oldest = frames = 0;
+        synced = false;
+    }
+
+    // Guarda el frame que acaba de terminar
+    void capture() {
+        if (memory.isConnectedLEC()) {
+            clear();
+            return;
+        }
+
+        if (!synced) {
+            for (int bank = 0; bank < Memory.RAM_BANKS; bank++) {
+                System.arraycopy(memory.getRamBank(bank), 0, shadow[bank], 0, BANK_SIZE);
+            }
+            synced = true;
+        }
+
+        while (frames == FRAMES
+            || (frames > 0 && head + MAX_DELTA - deltaAt[oldest] > POOL_SIZE)) {
+            oldest = (oldest + 1) % FRAMES;
+            frames--;
+        }
+
+        int frame = (oldest + frames) % FRAMES;
+        deltaAt[frame] = cursor = head;
+        for (int bank = 0; bank < Memory.RAM_BANKS; bank++) {
+            saveBank(bank);
+        }
+        put(END_OF_FRAME);
+        head = cursor;
+
+        states[frame] = spectrum.getStateWithoutRam(states[frame]);
+        frames++;
+    }
+
+    /*
+     * Deshace los cambios de memoria del último frame y deja la máquina
+     * como estaba en el anterior, que pasa a ser el último. Devuelve false
+     * si no hay frame anterior.
+     */
+    boolean stepBack() {
+        if (frames < 2) {
+            return false;
+        }
+
+        int frame = (oldest + frames - 1) % FRAMES;
+        cursor = deltaAt[frame];
+        int bank;
+        while ((bank = get()) != END_OF_FRAME) {
+            byte copy[] = shadow[bank];
+            byte ram[] = memory.getRamBank(bank);
+            int offset;
+            while ((offset = get16()) != END_OF_BANK) {
+                int end = offset + get16();
+                for (; offset < end; offset++) {
+                    copy[offset] ^= pool[cursor++ & POOL_MASK];
+                    ram[offset] = copy[offset];
+                }
+            }
+        }
+
+        head = deltaAt[frame];
+        frames--;
+
+        spectrum.setStateWithoutRam(states[(frame + FRAMES - 1) % FRAMES]);
+        return true;
+    }
+
+    /*
+     * Guarda, si los hay, los tramos del banco que no coinciden con la
+     * copia, y la pone al día. Los bytes entre el final de un tramo y el
+     * siguiente byte distinto ya se han comparado, así que se sigue desde
+     * donde se quedó la búsqueda.
+     */
+    private void saveBank(int bank) {
+        byte ram[] = memory.getRamBank(bank);
+        byte copy[] = shadow[bank];
+        boolean dirty = false;
+
+        int idx = 0;
+        while (idx < BANK_SIZE) {
+            if (ram[idx] == copy[idx]) {
+                idx++;
+                continue;
+            }
+
+            if (!dirty) {
+                put(bank);
+                dirty = true;
+            }
+
+            int start = idx;
+            int end = idx + 1;
+            for (idx = end; idx < BANK_SIZE && idx - end < GAP; idx++) {
+                if (ram[idx] != copy[idx]) {
+                    end = idx + 1;
+                }
+            }
+
+            put16(start);
+            put16(end - start);
+            for (int offset = start; offset < end; offset++) {
+                pool[cursor++ & POOL_MASK] = (byte) (ram[offset] ^ copy[offset]);
+                copy[offset] = ram[offset];
+            }
+        }
+
+        if (dirty) {
+            put16(END_OF_BANK);
+        }
+    }
+
+    private void put(int value) {
+        pool[cursor++ & POOL_MASK] = (byte) value;
+    }
+
+    private void put16(int value) {
+        put(value >>> 8);
+        put(value);
+    }
+
+    private int get() {
+        return pool[cursor++ & POOL_MASK] & 0xff;
+    }
+
+    private int get16() {
+        int msb = get();
+        return (msb << 8) | get();
+    }
+}
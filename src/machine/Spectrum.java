@@ -7,13 +7,13 @@ package machine;
 import configuration.JSpeccySettings;
 import configuration.SpectrumType;
 import gui.JSpeccyScreen;
-import java.awt.Graphics2D;
+import java.awt.DisplayMode;
+import java.awt.GraphicsEnvironment;
 import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
 import java.awt.image.DataBufferInt;
 import java.io.*;
 import java.util.Arrays;
-import java.util.Timer;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -22,7 +22,10 @@ import javax.swing.JLabel;
 import javax.swing.SwingUtilities;
 import joystickinput.JoystickRaw;
 import machine.Keyboard.JoystickModel;
+import snapshots.AY8912State;
+import snapshots.MemoryState;
 import snapshots.SpectrumState;
+import snapshots.Z80State;
 import utilities.Tape;
 import utilities.Tape.TapeState;
 import utilities.TapeStateListener;
@@ -36,19 +39,37 @@ public class Spectrum extends z80core.MemIoOps implements Runnable, z80core.Noti
 
     private final Z80 z80;
     private final Memory memory;
-    private final Clock clock;
     private final boolean[] contendedRamPage = new boolean[4];
     private final boolean[] contendedIOPage = new boolean[4];
     private int portFE, earBit = 0xbf, port7ffd, port1ffd, issueMask;
     private int kmouseX = 0, kmouseY = 0, kmouseW; // Kempston Mouse Turbo Master X, Y, Wheel
     private long framesByInt, speedometer, speed, prevSpeed;
+    // A toda velocidad se presenta un frame por refresco del monitor, y la
+    // velocidad se cuenta en frames por segundo cada SPEED_REPORT ns
+    private static final long SPEED_REPORT = 500000000L;
+    private volatile boolean maxSpeed;
+    private long presentPeriod, nextPresent, maxSpeedStart, maxSpeedFrames;
+    // Salto de frames: de cada skipLevel + 1 frames se presenta uno. Cuenta
+    // los presentados seguidos que se pasan de tiempo (slowFrames) o que van
+    // holgados (fastFrames) para subir o bajar skipLevel.
+    private static final int MAX_SKIP = 4;
+    private int skipLevel, skipCount, slowFrames, fastFrames;
+    // Tras un frame sin presentar, la zona cambiada se sigue acumulando
+    private boolean keepDirtyRect;
     private boolean muted, enabledAY, kmouseEnabled;
     private final byte delayTstates[] =
         new byte[MachineTypes.SPECTRUM128K.tstatesFrame + 200];
+    // Retardo de cada página de 16K: delayTstates si está contenida o noDelay,
+    // que es todo ceros. Lo cambia updateContention() cuando cambia la
+    // paginación, y así los accesos a memoria no tienen que preguntar nada.
+    private final byte noDelay[] = new byte[delayTstates.length];
+    private final byte delayAt[][] = { noDelay, noDelay, noDelay, noDelay };
+    // Lo mismo para addressOnBus, que en el +2A/+3 no tiene contención
+    private final byte busDelayAt[][] = { noDelay, noDelay, noDelay, noDelay };
     public MachineTypes spectrumModel;
     public int firstBorderUpdate, lastBorderUpdate, borderMode;
-    private final Timer timerFrame;
-    private SpectrumTimer taskFrame;
+    private final FramePacer pacer;
+    private final FrameMetrics metrics;
     private JSpeccyScreen jscr;
     private final Keyboard keyboard;
     private final Audio audio;
@@ -57,7 +78,16 @@ public class Spectrum extends z80core.MemIoOps implements Runnable, z80core.Noti
     private volatile boolean paused;
     private volatile boolean acceleratedLoading;
     private volatile boolean enabledSound;
+    private volatile boolean rewinding;
     private boolean resetPending, autoLoadTape;
+    private Rewind rewind;
+    // Run-ahead: los frames que se adelanta lo que se ve y dónde se guarda
+    // el estado de verdad mientras tanto. Con speculating, los frames que se
+    // ejecutan son adelantados: no suenan, no van al rewind, no miden la
+    // velocidad ni hacen el reset pendiente.
+    private int aheadFrames;
+    private StateSlot aheadSlot;
+    private boolean speculating;
     private JLabel speedLabel;
 
     private JoystickModel joystickModel;
@@ -67,12 +97,21 @@ public class Spectrum extends z80core.MemIoOps implements Runnable, z80core.Noti
     private final SpectrumType specSettings;
     /* Config vars */
     private boolean issue2, saveTrap, loadTrap, flashload;
+    private volatile boolean wallClockSync;
     private boolean connectedIF1;
     private final Interface1 if1;
 
     public Spectrum(JSpeccySettings config) {
+        this(config, true);
+    }
+
+    /*
+     * Con hostJoysticks a false no se abren los joysticks del equipo, para
+     * las máquinas que no ve nadie (el modo batch): ni hilos de JoystickRaw
+     * ni el aviso de que no hay ninguno. Los joysticks del teclado siguen.
+     */
+    public Spectrum(JSpeccySettings config, boolean hostJoysticks) {
         super(0,0);
-        clock = Clock.getInstance();
         settings = config;
         specSettings = settings.getSpectrumSettings();
         z80 = new Z80(this, this);
@@ -88,9 +127,9 @@ public class Spectrum extends z80core.MemIoOps implements Runnable, z80core.Noti
         enabledSound = false;
         paused = true;
         borderMode = 1;
-        if1 = new Interface1(settings.getInterface1Settings());
+        if1 = new Interface1(settings.getInterface1Settings(), clock);
 
-        if (System.getProperty("os.name").contains("Linux")) {
+        if (hostJoysticks && System.getProperty("os.name").contains("Linux")) {
             try {
                 joystick1 = new JoystickRaw(0);
                 joystick1.start();
@@ -106,15 +145,37 @@ public class Spectrum extends z80core.MemIoOps implements Runnable, z80core.Noti
 
         resetPending = false;
 
-        timerFrame = new Timer("SpectrumClock", true);
+        pacer = new FramePacer();
+        metrics = new FrameMetrics();
     }
 
     public final SpectrumState getSpectrumState() {
         SpectrumState state = new SpectrumState();
+        state.setMemoryState(memory.getMemoryState());
+        return getSpectrumState(state);
+    }
+
+    /*
+     * Todo el estado menos la RAM, que el rewind y los StateSlot guardan por
+     * su cuenta. Si state viene de una captura anterior se rellena ese, con
+     * sus objetos, y así capturar no reserva memoria.
+     */
+    SpectrumState getStateWithoutRam(SpectrumState state) {
+        if (state == null) {
+            state = new SpectrumState();
+        }
+
+        MemoryState memState = state.getMemoryState();
+        state.setMemoryState(memState == null
+            ? memory.getPagingState() : memory.getPagingState(memState));
+        return getSpectrumState(state);
+    }
+
+    private SpectrumState getSpectrumState(SpectrumState state) {
         
         state.setSpectrumModel(spectrumModel);
-        state.setZ80State(z80.getZ80State());
-        state.setMemoryState(memory.getMemoryState());
+        Z80State z80State = state.getZ80State();
+        state.setZ80State(z80State == null ? z80.getZ80State() : z80.getZ80State(z80State));
         state.setConnectedLec(specSettings.isLecEnabled());
         
         state.setEarBit(earBit);
@@ -133,7 +194,9 @@ public class Spectrum extends z80core.MemIoOps implements Runnable, z80core.Noti
 
         state.setEnabledAY(enabledAY);
         if (enabledAY) {
-            state.setAY8912State(ay8912.getAY8912State());
+            AY8912State ayState = state.getAY8912State();
+            state.setAY8912State(ayState == null
+                ? ay8912.getAY8912State() : ay8912.getAY8912State(ayState));
         }
 
         state.setConnectedIF1(connectedIF1);
@@ -147,7 +210,10 @@ public class Spectrum extends z80core.MemIoOps implements Runnable, z80core.Noti
         if (specSettings.isULAplus()) {
             state.setULAPlusActive(ULAPlusActive);
             state.setPaletteGroup(paletteGroup);
-            int[] palette = new int[64];
+            int[] palette = state.getULAPlusPalette();
+            if (palette == null) {
+                palette = new int[64];
+            }
             System.arraycopy(ULAPlusPalette[0], 0, palette, 0, 16);
             System.arraycopy(ULAPlusPalette[1], 0, palette, 16, 16);
             System.arraycopy(ULAPlusPalette[2], 0, palette, 32, 16);
@@ -169,6 +235,37 @@ public class Spectrum extends z80core.MemIoOps implements Runnable, z80core.Noti
         earBit = state.getEarBit();
         portFE = state.getPortFE();
 
+        setPagingPorts(state);
+        
+        keyboard.reset();
+        setJoystick(state.getJoystick());
+        settings.getKeyboardJoystickSettings().setIssue2(state.isIssue2());
+
+        enabledAY = state.isEnabledAY();
+        if (enabledAY) {
+            ay8912.setSpectrumModel(spectrumModel);
+            ay8912.setAY8912State(state.getAY8912State());
+            settings.getSpectrumSettings().setAYEnabled48K(state.isEnabledAYon48k());
+        }
+
+        settings.getInterface1Settings().setConnectedIF1(state.isConnectedIF1());
+        if (state.isConnectedIF1()) {
+            settings.getInterface1Settings().setMicrodriveUnits(state.getNumMicrodrives());
+        }
+        
+        specSettings.setMultifaceEnabled(state.isMultiface());
+        
+        specSettings.setULAplus(state.isULAPlusEnabled());
+        setULAState(state);
+
+        loadConfigVars();
+
+        if (memory.isConnectedLEC()) {
+           pageLec(state.getMemoryState().getPortFD());
+        }
+    }
+
+    private void setPagingPorts(SpectrumState state) {
         if (spectrumModel.codeModel != MachineTypes.CodeModel.SPECTRUM48K) {
             port7ffd = state.getPort7ffd();
             if (spectrumModel.codeModel == MachineTypes.CodeModel.SPECTRUMPLUS3) {
@@ -201,26 +298,10 @@ public class Spectrum extends z80core.MemIoOps implements Runnable, z80core.Noti
                     (port7ffd & 0x01) != 0;
             }
         }
-        
-        keyboard.reset();
-        setJoystick(state.getJoystick());
-        settings.getKeyboardJoystickSettings().setIssue2(state.isIssue2());
-
-        enabledAY = state.isEnabledAY();
-        if (enabledAY) {
-            ay8912.setSpectrumModel(spectrumModel);
-            ay8912.setAY8912State(state.getAY8912State());
-            settings.getSpectrumSettings().setAYEnabled48K(state.isEnabledAYon48k());
-        }
+        updateContention();
+    }
 
-        settings.getInterface1Settings().setConnectedIF1(state.isConnectedIF1());
-        if (state.isConnectedIF1()) {
-            settings.getInterface1Settings().setMicrodriveUnits(state.getNumMicrodrives());
-        }
-        
-        specSettings.setMultifaceEnabled(state.isMultiface());
-        
-        specSettings.setULAplus(state.isULAPlusEnabled());
+    private void setULAState(SpectrumState state) {
         if (state.isULAPlusEnabled()) {
             ULAPlusActive = state.isULAPlusActive();
             paletteGroup = state.getPaletteGroup();
@@ -236,17 +317,82 @@ public class Spectrum extends z80core.MemIoOps implements Runnable, z80core.Noti
         }
 
         clock.setTstates(state.getTstates());
-        step = 0;
+        step = screenLogLength = 0;
         while (step < stepStates.length && stepStates[step] < state.getTstates()) {
             step++;
         }
         nextEvent = step < stepStates.length ? stepStates[step] : NO_EVENT;
+    }
 
-        loadConfigVars();
+    /*
+     * La otra mitad de getStateWithoutRam. El modelo es el mismo y la RAM
+     * ya está puesta, así que no se pasa por selectHardwareModel, que además
+     * pararía la cinta y reabriría la línea de audio.
+     */
+    void setStateWithoutRam(SpectrumState state) {
+        z80.setZ80State(state.getZ80State());
+        memory.reset(spectrumModel);
+        memory.setPagingState(state.getMemoryState());
 
+        earBit = state.getEarBit();
+        portFE = state.getPortFE();
+
+        setPagingPorts(state);
+
+        if (state.isEnabledAY()) {
+            ay8912.setAY8912State(state.getAY8912State());
+        }
+
+        // setTstates pone a cero el contador de frames, del que dependen el
+        // FLASH y la medida de la velocidad. Aquí no se empieza de nuevo.
+        long frames = clock.getFrames();
+        setULAState(state);
+        clock.setFrames(frames);
+    }
+
+    /*
+     * Guarda la máquina en slot, copiando la RAM a sus bancos y rellenando
+     * su estado: no se reserva memoria ni se pasa por ningún formato de
+     * snapshot. Con el LEC conectado no se puede, devuelve false.
+     */
+    public synchronized boolean quickSave(StateSlot slot) {
         if (memory.isConnectedLEC()) {
-           pageLec(state.getMemoryState().getPortFD());
+            return false;
+        }
+
+        for (int bank = 0; bank < Memory.RAM_BANKS; bank++) {
+            System.arraycopy(memory.getRamBank(bank), 0, slot.ram[bank], 0, slot.ram[bank].length);
+        }
+        slot.state = getStateWithoutRam(slot.state);
+        return true;
+    }
+
+    /*
+     * Deja la máquina como se guardó en slot. Si el modelo es otro se
+     * cambia antes, y eso sí es lento. Devuelve false si el slot está vacío
+     * o si ahora está conectado el LEC.
+     */
+    public synchronized boolean quickLoad(StateSlot slot) {
+        if (slot.state == null || memory.isConnectedLEC()) {
+            return false;
+        }
+
+        // Como al cargar un snapshot: la cinta no va en el slot, y el
+        // siguiente flanco que tenía programado se pierde en setTstates
+        if (tape != null && tape.isTapePlaying()) {
+            tape.stop();
+        }
+
+        if (slot.state.getSpectrumModel() != spectrumModel) {
+            selectHardwareModel(slot.state.getSpectrumModel());
+        }
+
+        for (int bank = 0; bank < Memory.RAM_BANKS; bank++) {
+            System.arraycopy(slot.ram[bank], 0, memory.getRamBank(bank), 0, slot.ram[bank].length);
         }
+        setStateWithoutRam(slot.state);
+        invalidateScreen(true);
+        return true;
     }
 
     public void selectHardwareModel(int model) {
@@ -278,8 +424,12 @@ public class Spectrum extends z80core.MemIoOps implements Runnable, z80core.Noti
         }
 
         disableSound();
+        if (rewind != null) {
+            rewind.clear();
+        }
         spectrumModel = hardwareModel;
         clock.setSpectrumModel(spectrumModel);
+        pacer.setSpectrumModel(spectrumModel);
         memory.reset(spectrumModel);
 
         if (tape != null) {
@@ -291,27 +441,32 @@ public class Spectrum extends z80core.MemIoOps implements Runnable, z80core.Noti
         contendedRamPage[2] = contendedIOPage[2] = false;
         contendedRamPage[3] = contendedIOPage[3] = false;
 
+        int palette[] = Paleta48k;
         switch (spectrumModel.codeModel) {
             case SPECTRUM48K:
                 buildScreenTables48k();
                 enabledAY = specSettings.isAYEnabled48K();
                 connectedIF1 = settings.getInterface1Settings().isConnectedIF1();
-                Paleta = Paleta48k;
+                palette = Paleta48k;
                 break;
             case SPECTRUM128K:
                 buildScreenTables128k();
                 enabledAY = true;
                 connectedIF1 = settings.getInterface1Settings().isConnectedIF1();
-                Paleta = Paleta128k;
+                palette = Paleta128k;
                 break;
             case SPECTRUMPLUS3:
                 buildScreenTablesPlus3();
                 enabledAY = true;
                 contendedIOPage[1] = false;
                 connectedIF1 = false;
-                Paleta = Paleta128k;
+                palette = Paleta128k;
                 break;
         }
+        updateContention();
+
+        Paleta = palette;
+        paletteVersion++;
 
         // Inicialización de las tablas de Paper/Ink
         /* Para cada valor de atributo, hay dos tablas, donde cada una
@@ -322,15 +477,15 @@ public class Spectrum extends z80core.MemIoOps implements Runnable, z80core.Noti
             int paper = ((idx >>> 3) & 0x07) | ((idx & 0x40) != 0 ? 0x08 : 0x00);
 
             if (idx < 128) {
-                Ink[idx] = Paleta[ink];
-                Paper[idx] = Paleta[paper];
+                Ink[idx] = palette[ink];
+                Paper[idx] = palette[paper];
             } else {
-                Ink[idx] = Paleta[paper];
-                Paper[idx] = Paleta[ink];
+                Ink[idx] = palette[paper];
+                Paper[idx] = palette[ink];
             }
         }
 
-        step = 0;
+        step = screenLogLength = 0;
         nextEvent = stepStates[0];
 
         enableSound();
@@ -359,6 +514,12 @@ public class Spectrum extends z80core.MemIoOps implements Runnable, z80core.Noti
         z80.setBreakpoint(0x0556, loadTrap);
         
         flashload = settings.getTapeSettings().isFlashLoad();
+
+        wallClockSync = specSettings.isWallClockSync();
+
+        setAheadFrames(specSettings.getAheadFrames());
+
+        z80.setTranslationEnabled(specSettings.isTranslateBlocks());
         
         if1.setNumDrives(settings.getInterface1Settings().getMicrodriveUnits());
         if (spectrumModel.codeModel != MachineTypes.CodeModel.SPECTRUMPLUS3) {
@@ -392,11 +553,11 @@ public class Spectrum extends z80core.MemIoOps implements Runnable, z80core.Noti
         lastChgBorder = firstBorderUpdate;
         drawFrame();
         jscr.repaint();
+        pacer.reset();
         paused = false;
         enableSound();
-        if (!enabledSound) {
-            taskFrame = new SpectrumTimer(this);
-            timerFrame.scheduleAtFixedRate(taskFrame, 10, 20);
+        synchronized (this) {
+            notify();
         }
     }
 
@@ -406,13 +567,7 @@ public class Spectrum extends z80core.MemIoOps implements Runnable, z80core.Noti
         }
 
         paused = true;
-
-        if (enabledSound) {
-            disableSound();
-        } else {
-            taskFrame.cancel();
-            taskFrame = null;
-        }
+        disableSound();
     }
 
     @Override
@@ -423,6 +578,9 @@ public class Spectrum extends z80core.MemIoOps implements Runnable, z80core.Noti
     }
 
     private void doReset() {
+        if (rewind != null) {
+            rewind.clear();
+        }
         clock.reset();
         z80.reset();
         if (memory.isLecPaged()) {
@@ -440,7 +598,7 @@ public class Spectrum extends z80core.MemIoOps implements Runnable, z80core.Noti
         kmouseW = 0xff;
         kmouseEnabled = true;
         ULAPlusActive = false;
-        step = paletteGroup = 0;
+        step = paletteGroup = screenLogLength = 0;
         invalidateScreen(true);
         resetPending = false;
     }
@@ -503,8 +661,15 @@ public class Spectrum extends z80core.MemIoOps implements Runnable, z80core.Noti
         
     }
 
+    // Traducción a bytecode de los bloques de código más ejecutados
+    public void setTranslationEnabled(boolean state) {
+        z80.setTranslationEnabled(state);
+    }
+
     public void setScreenComponent(JSpeccyScreen jScr) {
         this.jscr = jScr;
+        jscr.setFrameMetrics(metrics);
+        jscr.setSpectrum(this);
     }
     
     public Memory getMemory() {
@@ -555,26 +720,28 @@ public class Spectrum extends z80core.MemIoOps implements Runnable, z80core.Noti
     }
 
     /*
-     * El emulador hace uso de dos sistemas de sincronización diferentes, que se escoge dependiendo
-     * de si está habilitado el sonido o no. Si el sonido está activado, el "metrónomo" es la propia
-     * tarjeta de sonido. La llamada al método sendAudioFrame se bloquea en el write hasta que
-     * la tarjeta se ha quedado con todos los datos. Cuando no hay audio o el emulador está en pausa,
-     * ejecuta un wait del que sale automáticamente para saber si ha salido de la pausa o bien lo saca
-     * de la pausa el 'tick' del reloj que se programa para que salte cada 20 ms.
+     * El emulador hace uso de dos sistemas de sincronización diferentes. Con el sonido activado
+     * el "metrónomo" es, salvo que se haya escogido el reloj del sistema, la propia tarjeta de
+     * sonido: la llamada al método sendAudioFrame se bloquea en el write hasta que la tarjeta se
+     * ha quedado con todos los datos. Si no, se espera en el FramePacer a la hora del siguiente
+     * frame. En pausa se ejecuta un wait del que sale automáticamente para saber si ha salido de
+     * la pausa, o bien lo saca startEmulation.
+     *
+     * Las esperas se hacen sin tener el lock, de modo que el interfaz puede usar entre frame y
+     * frame los métodos sincronizados sin parar la emulación.
      */
     @Override
-    public synchronized void run() {
+    public void run() {
         while (true) {
-            if (paused || !enabledSound) {
-                try {
-                    wait(250);
-                } catch (InterruptedException ex) {
-                    Logger.getLogger(Spectrum.class.getName()).log(Level.SEVERE, null, ex);
-                }
-
-                if (paused) {
-                    continue;
+            if (paused) {
+                synchronized (this) {
+                    try {
+                        wait(250);
+                    } catch (InterruptedException ex) {
+                        Logger.getLogger(Spectrum.class.getName()).log(Level.SEVERE, null, ex);
+                    }
                 }
+                continue;
             }
 
             if (acceleratedLoading) {
@@ -584,24 +751,309 @@ public class Spectrum extends z80core.MemIoOps implements Runnable, z80core.Noti
                 startEmulation();
             }
 
-            generateFrame();
-            drawFrame();
+            if (maxSpeed && !rewinding) {
+                runMaxSpeedFrame();
+                continue;
+            }
+
+            long start = System.nanoTime();
+            int m1Count = z80.getM1Count();
+            boolean present = rewinding || framesByInt > 1 || !isFrameSkipped();
+            if (rewinding) {
+                rewindFrame();
+            } else if (aheadFrames > 0 && framesByInt == 1) {
+                runAheadFrame(present);
+            } else {
+                generateFrame();
+            }
+
+            long emulated = System.nanoTime();
+            if (present) {
+                drawFrame();
+            } else {
+                skipFrame();
+            }
+
+            long presented = System.nanoTime();
+            if (present) {
+                adjustFrameSkip(emulated - start, presented - emulated);
+            }
+
+            boolean underrun = false;
+            long audioWrite = 0;
             if (enabledSound) {
-                audio.sendAudioFrame();
+                underrun = audio.sendAudioFrame();
+                audioWrite = System.nanoTime() - presented;
+            }
+            metrics.endFrame(emulated - start, presented - emulated, audioWrite,
+                underrun, z80.getM1Count() - m1Count, present);
+
+            if (!enabledSound || wallClockSync) {
+                pacer.await();
             }
         }
     }
 
-    public synchronized void generateFrame() {
+    /*
+     * A toda velocidad los frames se ejecutan seguidos, sin sonido ni
+     * esperas, para pasar deprisa presentaciones largas o cargas. Pintar
+     * cada frame sería tirar el tiempo, así que sólo se presenta uno por
+     * refresco del monitor; como los de en medio no llegan a la pantalla, el
+     * que se presenta se redibuja entero. En lugar del porcentaje, la
+     * etiqueta de velocidad muestra frames por segundo y MHz equivalentes.
+     */
+    public void setMaxSpeed(boolean state) {
+        if (state == maxSpeed) {
+            return;
+        }
+
+        if (state) {
+            presentPeriod = 1000000000L / getRefreshRate();
+            nextPresent = maxSpeedStart = System.nanoTime();
+            maxSpeedFrames = 0;
+            disableSound();
+            maxSpeed = true;
+        } else {
+            maxSpeed = false;
+            prevSpeed = 0;
+            invalidateScreen(true);
+            enableSound();
+        }
+    }
+
+    public boolean isMaxSpeed() {
+        return maxSpeed;
+    }
 
-//        long startFrame, endFrame, sleepTime;
-//        startFrame = System.currentTimeMillis();
-//        System.out.println("Start frame: " + startFrame);
+    private static int getRefreshRate() {
+        if (!GraphicsEnvironment.isHeadless()) {
+            int rate = GraphicsEnvironment.getLocalGraphicsEnvironment()
+                .getDefaultScreenDevice().getDisplayMode().getRefreshRate();
+            if (rate != DisplayMode.REFRESH_RATE_UNKNOWN) {
+                return rate;
+            }
+        }
+        return 60;
+    }
+
+    private void runMaxSpeedFrame() {
+        long now = System.nanoTime();
+        boolean present = now - nextPresent >= 0;
+        if (present) {
+            nextPresent = now + presentPeriod;
+            invalidateScreen(true);
+        }
+
+        int m1Count = z80.getM1Count();
+        generateFrame();
+        long emulated = System.nanoTime();
+        if (present) {
+            drawFrame();
+        }
+        metrics.endFrame(emulated - now, System.nanoTime() - emulated, 0, false,
+            z80.getM1Count() - m1Count, present);
+
+        maxSpeedFrames++;
+        long elapsed = now - maxSpeedStart;
+        if (elapsed >= SPEED_REPORT) {
+            double fps = maxSpeedFrames * 1e9 / elapsed;
+            String text = String.format("%.0f fps %.1f MHz", fps,
+                fps * spectrumModel.tstatesFrame / 1e6);
+            SwingUtilities.invokeLater(() -> {
+                speedLabel.setText(text);
+            });
+            maxSpeedStart = now;
+            maxSpeedFrames = 0;
+        }
+    }
+
+    /*
+     * Salto de frames adaptativo. Si el host no da para ejecutar y pintar
+     * cada frame en lo que dura, se deja de presentar alguno, nunca de
+     * ejecutarlo: la emulación y el sonido siguen al 100%.
+     *
+     * Un frame cuesta lo que tarda en ejecutarse más lo que cuesta
+     * presentarlo: pasarlo a la pantalla en este hilo y pintarlo, con los
+     * filtros, en el EDT (lo del último repintado que anotó FrameMetrics).
+     * Como sólo se presenta uno de cada skipLevel + 1 frames, lo de
+     * presentar se reparte entre ellos. Con tres frames presentados
+     * seguidos por encima del 90% de su tiempo se salta uno más de cada
+     * grupo, hasta MAX_SKIP; con cincuenta que con uno menos quedarían por
+     * debajo del 60%, uno menos. La diferencia entre los dos umbrales evita
+     * que el nivel baile de un frame a otro. Si ejecutar el frame ya se
+     * pasa del 90%, saltar frames no lo arregla: no se sube, y lo que se
+     * hubiera subido se va bajando.
+     */
+    private boolean isFrameSkipped() {
+        if (skipCount < skipLevel) {
+            skipCount++;
+            return true;
+        }
+        skipCount = 0;
+        return false;
+    }
+
+    private void adjustFrameSkip(long emulationTime, long presentTime) {
+        long period = pacer.getPeriod();
+        long limit = period * 9 / 10;
+        long present = presentTime + metrics.getLastPaintTime();
+        if (emulationTime <= limit
+                && emulationTime + present / (skipLevel + 1) > limit) {
+            fastFrames = 0;
+            if (++slowFrames == 3) {
+                slowFrames = 0;
+                if (skipLevel < MAX_SKIP) {
+                    skipLevel++;
+                }
+            }
+        } else if (skipLevel > 0 && (emulationTime > limit
+                || emulationTime + present / skipLevel < period * 6 / 10)) {
+            slowFrames = 0;
+            if (++fastFrames == 50) {
+                fastFrames = 0;
+                skipLevel--;
+            }
+        } else {
+            slowFrames = fastFrames = 0;
+        }
+    }
+
+    // Frames que no se han presentado por el salto de frames
+    public long getSkippedFrames() {
+        return metrics.getSkippedFrames();
+    }
+
+    public FrameMetrics getFrameMetrics() {
+        return metrics;
+    }
+
+    /*
+     * Con el rewind activo se guarda el estado al final de cada frame,
+     * hasta un minuto atrás. Gasta algo de memoria y de tiempo por frame,
+     * por eso sólo lo activa el interfaz, y sólo si está en la configuración
+     * (rewindEnabled) o se pide desde el menú. Se puede cambiar con la
+     * emulación en marcha: no se hace a mitad de un frame.
+     */
+    public synchronized void setRewindEnabled(boolean state) {
+        if (state && rewind == null) {
+            rewind = new Rewind(this, memory);
+        } else if (!state) {
+            rewinding = false;
+            rewind = null;
+        }
+    }
+
+    /*
+     * Mientras está activo, el emulador va hacia atrás a 50 frames por
+     * segundo en lugar de ejecutar. Al desactivarlo, sigue desde el frame
+     * en el que se haya quedado.
+     */
+    public void setRewinding(boolean state) {
+        rewinding = state && rewind != null;
+    }
+
+    public boolean isRewinding() {
+        return rewinding;
+    }
+
+    /*
+     * Un paso atrás en lugar de un frame: se recupera el estado del frame
+     * anterior y se repinta entera su pantalla. Cuando no quedan frames se
+     * queda en el más antiguo.
+     */
+    private synchronized void rewindFrame() {
+        Rewind frames = rewind;
+        if (frames == null) {
+            return;
+        }
+
+        // La posición de la cinta no va en el estado, y su siguiente flanco
+        // se pierde con los eventos del Clock al volver atrás. Se para, y
+        // al terminar el rewind se puede volver a poner en marcha.
+        if (tape.isTapePlaying()) {
+            tape.stop();
+        }
+
+        if (!frames.stepBack()) {
+            return;
+        }
+
+        lastScanLine = rightCol = lastBorderPix = 0;
+        firstBorderPix = dataInProgress.length;
+        firstScanLine = 191;
+        leftCol = 31;
+        lastChgBorder = firstBorderUpdate;
+
+        invalidateScreen(true);
+        int from = step;
+        step = 0;
+        updateScreen(spectrumModel.tstatesFrame);
+        step = from;
+        nextEvent = step < stepStates.length ? stepStates[step] : NO_EVENT;
+        // Hacia atrás no suena nada
+        audio.reset();
+    }
+
+    /*
+     * Número de frames que el run-ahead adelanta la respuesta a la entrada
+     * (0 lo desactiva). Cada uno es un frame más que ejecutar por cada frame
+     * presentado, y además hay que guardar y recuperar el estado.
+     */
+    public synchronized void setAheadFrames(int frames) {
+        aheadFrames = Math.max(0, Math.min(frames, 4));
+        if (aheadFrames == 0) {
+            aheadSlot = null;
+        } else if (aheadSlot == null) {
+            aheadSlot = new StateSlot();
+        }
+    }
+
+    /*
+     * Run-ahead. Primero se ejecuta el frame de verdad, con su sonido y su
+     * captura para el rewind. Luego se guarda el estado y desde él se
+     * ejecutan aheadFrames frames más con la entrada de ahora, sólo para
+     * que la pantalla muestre ya cómo responde el programa a ella. Después
+     * se vuelve al estado guardado: se presenta el último frame adelantado,
+     * pero la máquina sigue en el de verdad, y como la pantalla se invalida
+     * al recuperarlo, el siguiente frame se redibuja entero desde él.
+     * Si el frame no se va a presentar no merece la pena adelantar nada, y
+     * con la cinta en marcha no se puede, porque su posición no va en el
+     * estado.
+     */
+    private synchronized void runAheadFrame(boolean present) {
+        generateFrame();
+
+        if (!present || tape.isTapePlaying() || !quickSave(aheadSlot)) {
+            return;
+        }
+
+        // El contador de frames y la fase del flash no van en el estado
+        long frames = clock.getFrames();
+        int flashPhase = flash;
+        speculating = true;
+        try {
+            for (int frame = 0; frame < aheadFrames; frame++) {
+                skipFrame();
+                generateFrame();
+            }
+            // El borde del último se termina con su color, no con el que
+            // habrá al recuperar el estado
+            finishBorder();
+        } finally {
+            speculating = false;
+        }
+
+        quickLoad(aheadSlot);
+        clock.setFrames(frames);
+        flash = flashPhase;
+    }
+
+    public synchronized void generateFrame() {
 
         //z80.tEstados = frameStart;
         //System.out.println(String.format("Begin frame. t-states: %d", z80.tEstados));
 
-        if (resetPending) {
+        if (resetPending && !speculating) {
             doReset();
             if (autoLoadTape) {
                 doAutoLoadTape();
@@ -610,24 +1062,27 @@ public class Spectrum extends z80core.MemIoOps implements Runnable, z80core.Noti
 
         long counter = framesByInt;
 
-        lastScanLine = rightCol = lastBorderPix = 0;
-        firstBorderPix = dataInProgress.length;
-        firstScanLine = 191;
-        leftCol = 31;
+        if (!keepDirtyRect) {
+            lastScanLine = rightCol = lastBorderPix = 0;
+            firstBorderPix = dataInProgress.length;
+            firstScanLine = 191;
+            leftCol = 31;
+        }
+        keepDirtyRect = false;
         lastChgBorder = firstBorderUpdate;
 
         do {
 
-            while (step < stepStates.length) {
-                z80.execute(stepStates[step]);
-                if (clock.getTstates() >= nextEvent) {
-                    updateScreen(clock.getTstates());
-                }
-            }
-
+            // La pantalla se pone al día sola antes de cada cambio que le
+            // afecte (escrituras, paginación, paleta), así que el frame se
+            // ejecuta de una vez y al final se pinta lo que falte.
             z80.execute(spectrumModel.tstatesFrame);
 
-            if (enabledSound) {
+            if (nextEvent != NO_EVENT) {
+                updateScreen(spectrumModel.tstatesFrame);
+            }
+
+            if (enabledSound && !speculating) {
                 if (enabledAY) {
                     ay8912.updateAY(spectrumModel.tstatesFrame);
                 }
@@ -644,9 +1099,11 @@ public class Spectrum extends z80core.MemIoOps implements Runnable, z80core.Noti
                 toggleFlash();
             }
 
-            if (clock.getFrames() % 50 == 0) {
+            if (clock.getFrames() % 50 == 0 && !maxSpeed && !speculating) {
                 long now = System.currentTimeMillis() / 10;
-                speed = 10000 / (now - speedometer);
+                // A más de 50 frames cada 10 ms (benchmarks) el intervalo
+                // puede ser cero, y no por ello hay que dividir por él.
+                speed = 10000 / Math.max(now - speedometer, 1);
                 speedometer = now;
                 if (speed != prevSpeed) {
                     prevSpeed = speed;
@@ -682,10 +1139,9 @@ public class Spectrum extends z80core.MemIoOps implements Runnable, z80core.Noti
                 z80.reset();
             }
         }
-        //endFrame = System.currentTimeMillis();
-        //System.out.println("End frame: " + endFrame);
-        //sleepTime = endFrame - startFrame;
-        //System.out.println("execFrame en: " + sleepTime);
+        if (rewind != null && !speculating) {
+            rewind.capture();
+        }
     }
 
     public synchronized void drawFrame() {
@@ -697,44 +1153,41 @@ public class Spectrum extends z80core.MemIoOps implements Runnable, z80core.Noti
          * en juegos como el TV-game.
          */
 
-//        System.out.println(
-//         String.format("screenDirty: %b, lastChgBorder: %d, borderChanged: %b, nBorderChanges: %d",
-//           screenDirty, lastChgBorder, borderChanged, nBorderChanges));
-
-        if (borderUpdated || borderChanged) {
-            borderChanged = borderUpdated;
-            borderUpdated = false;
-            updateBorder(lastBorderUpdate);
-            if (borderDirty) {
-                borderDirty = false;
-                gcTvImage.drawImage(inProgressImage, 0, 0, null);
-                int zoom = jscr.getZoom();
-                int fbl = firstBorderPix / SCREEN_WIDTH;
-                borderRect.x = 0;
-                borderRect.y = fbl * zoom;
-                borderRect.width = SCREEN_WIDTH * zoom;
-                borderRect.height = (lastBorderPix / SCREEN_WIDTH - fbl + zoom) * zoom;
-                if (screenDirty) {
-                    screenDirty = false;
-                    gcTvImage.drawImage(inProgressImage, 0, 0, null);
-                    screenRect.x = ((LEFT_BORDER + leftCol * 8) * zoom) - zoom;
-                    screenRect.y = ((TOP_BORDER + firstScanLine) * zoom) - zoom;
-                    screenRect.width = ((rightCol - leftCol + 1) * 8 * zoom) + zoom * 2;
-                    screenRect.height = ((lastScanLine - firstScanLine + 1) * zoom) + zoom * 2;
-//                    System.out.println("borderDirty + screenDirty @ rect " + borderRect.union(screenRect));
-                    jscr.repaint(borderRect.union(screenRect));
-                } else {
-//                    System.out.println("borderDirty @ rect " + borderRect);
-                    jscr.repaint(borderRect);
-                }
-                return;
+//        System.out.println(
+//         String.format("screenDirty: %b, lastChgBorder: %d, borderChanged: %b, nBorderChanges: %d",
+//           screenDirty, lastChgBorder, borderChanged, nBorderChanges));
+
+        finishBorder();
+
+        // Si hubo frames sin presentar, el borde pudo cambiar en alguno de
+        // ellos aunque no en este
+        if (borderDirty) {
+            borderDirty = false;
+            tvFrames.publish(dataInProgress);
+            int zoom = jscr.getZoom();
+            int fbl = firstBorderPix / SCREEN_WIDTH;
+            borderRect.x = 0;
+            borderRect.y = fbl * zoom;
+            borderRect.width = SCREEN_WIDTH * zoom;
+            borderRect.height = (lastBorderPix / SCREEN_WIDTH - fbl + zoom) * zoom;
+            if (screenDirty) {
+                screenDirty = false;
+                screenRect.x = ((LEFT_BORDER + leftCol * 8) * zoom) - zoom;
+                screenRect.y = ((TOP_BORDER + firstScanLine) * zoom) - zoom;
+                screenRect.width = ((rightCol - leftCol + 1) * 8 * zoom) + zoom * 2;
+                screenRect.height = ((lastScanLine - firstScanLine + 1) * zoom) + zoom * 2;
+//                System.out.println("borderDirty + screenDirty @ rect " + borderRect.union(screenRect));
+                jscr.repaint(borderRect.union(screenRect));
+            } else {
+//                System.out.println("borderDirty @ rect " + borderRect);
+                jscr.repaint(borderRect);
             }
-//                System.out.println(String.format("Frame: %8d - Repaint border", clock.getFrames()));
+            return;
         }
 
         if (screenDirty) {
             screenDirty = false;
-            gcTvImage.drawImage(inProgressImage, 0, 0, null);
+            tvFrames.publish(dataInProgress);
 
             int zoom = jscr.getZoom();
             screenRect.x = ((LEFT_BORDER + leftCol * 8) * zoom) - zoom;
@@ -746,6 +1199,27 @@ public class Spectrum extends z80core.MemIoOps implements Runnable, z80core.Noti
         }
     }
 
+    // Lo que falta del borde del frame, se presente o no
+    private void finishBorder() {
+        flushBorder();
+
+        if (borderUpdated || borderChanged) {
+            borderChanged = borderUpdated;
+            borderUpdated = false;
+            updateBorder(lastBorderUpdate);
+            flushBorder();
+        }
+    }
+
+    /*
+     * Un frame que el salto de frames no presenta: se termina el borde,
+     * pero lo cambiado queda pendiente y su zona se suma a la del siguiente.
+     */
+    private synchronized void skipFrame() {
+        finishBorder();
+        keepDirtyRect = true;
+    }
+
     private synchronized void acceleratedLoading() {
 
         lastScanLine = lastBorderPix = 0;
@@ -766,11 +1240,12 @@ public class Spectrum extends z80core.MemIoOps implements Runnable, z80core.Noti
 
             if (LEFT_BORDER > 0) {
                 updateBorder(lastBorderUpdate);
+                flushBorder();
             }
 
             step = 0;
             updateScreen(spectrumModel.lastScrUpdate);
-            gcTvImage.drawImage(inProgressImage, 0, 0, null);
+            tvFrames.publish(dataInProgress);
             jscr.repaint();
 
             lastScanLine = rightCol = lastBorderPix = 0;
@@ -802,26 +1277,37 @@ public class Spectrum extends z80core.MemIoOps implements Runnable, z80core.Noti
         nextEvent = stepStates[0];
     }
     
+    // Hay que llamarlo cada vez que cambia contendedRamPage
+    private void updateContention() {
+        boolean plus3 = spectrumModel.codeModel == MachineTypes.CodeModel.SPECTRUMPLUS3;
+        for (int page = 0; page < 4; page++) {
+            delayAt[page] = contendedRamPage[page] ? delayTstates : noDelay;
+            busDelayAt[page] = contendedRamPage[page] && !plus3 ? delayTstates : noDelay;
+        }
+    }
+
     @Override
     public int fetchOpcode(int address) {
 
-        if (contendedRamPage[address >>> 14]) {
-            clock.addTstates(delayTstates[clock.getTstates()] + 4);
-        } else {
-            clock.addTstates(4);
-        }
+        clock.addTstates(delayAt[address >>> 14][clock.getTstates()] + 4);
+
+        return memory.readByte(address) & 0xff;
+    }
 
+    @Override
+    public int readByte(int address) {
         return memory.readByte(address) & 0xff;
     }
 
+    @Override
+    public Object getCodePage(int address) {
+        return memory.getReadPage(address);
+    }
+
     @Override
     public int peek8(int address) {
 
-        if (contendedRamPage[address >>> 14]) {
-            clock.addTstates(delayTstates[clock.getTstates()] + 3);
-        } else {
-            clock.addTstates(3);
-        }
+        clock.addTstates(delayAt[address >>> 14][clock.getTstates()] + 3);
 
         return memory.readByte(address) & 0xff;
     }
@@ -829,16 +1315,14 @@ public class Spectrum extends z80core.MemIoOps implements Runnable, z80core.Noti
     @Override
     public void poke8(int address, int value) {
 
-        if (contendedRamPage[address >>> 14]) {
-            clock.addTstates(delayTstates[clock.getTstates()] + 3);
-            if (memory.isScreenByteModified(address, (byte) value)) {
-                if (clock.getTstates() >= nextEvent) {
-                    updateScreen(clock.getTstates());
-                }
+        byte delay[] = delayAt[address >>> 14];
+        clock.addTstates(delay[clock.getTstates()] + 3);
+        if (delay != noDelay && memory.isScreenByteModified(address, (byte) value)) {
+            if (clock.getTstates() >= nextEvent) {
+                logScreenWrite(address);
+            } else {
                 notifyScreenWrite(address);
             }
-        } else {
-            clock.addTstates(3);
         }
 
         memory.writeByte(address, (byte) value);
@@ -847,20 +1331,12 @@ public class Spectrum extends z80core.MemIoOps implements Runnable, z80core.Noti
     @Override
     public int peek16(int address) {
 
-        if (contendedRamPage[address >>> 14]) {
-            clock.addTstates(delayTstates[clock.getTstates()] + 3);
-        } else {
-            clock.addTstates(3);
-        }
+        clock.addTstates(delayAt[address >>> 14][clock.getTstates()] + 3);
 
         int lsb = memory.readByte(address) & 0xff;
 
         address = (address + 1) & 0xffff;
-        if (contendedRamPage[address >>> 14]) {
-            clock.addTstates(delayTstates[clock.getTstates()] + 3);
-        } else {
-            clock.addTstates(3);
-        }
+        clock.addTstates(delayAt[address >>> 14][clock.getTstates()] + 3);
 
         return ((memory.readByte(address) << 8) & 0xff00 | lsb);
     }
@@ -871,46 +1347,135 @@ public class Spectrum extends z80core.MemIoOps implements Runnable, z80core.Noti
         byte lsb = (byte) word;
         byte msb = (byte) (word >>> 8);
 
-        if (contendedRamPage[address >>> 14]) {
-            clock.addTstates(delayTstates[clock.getTstates()] + 3);
-            if (memory.isScreenByteModified(address, lsb)) {
-                if (clock.getTstates() >= nextEvent) {
-                    updateScreen(clock.getTstates());
-                }
+        byte delay[] = delayAt[address >>> 14];
+        clock.addTstates(delay[clock.getTstates()] + 3);
+        if (delay != noDelay && memory.isScreenByteModified(address, lsb)) {
+            if (clock.getTstates() >= nextEvent) {
+                logScreenWrite(address);
+            } else {
                 notifyScreenWrite(address);
             }
-        } else {
-            clock.addTstates(3);
         }
 
         memory.writeByte(address, lsb);
 
         address = (address + 1) & 0xffff;
 
-        if (contendedRamPage[address >>> 14]) {
-            clock.addTstates(delayTstates[clock.getTstates()] + 3);
-            if (memory.isScreenByteModified(address, msb)) {
-                if (clock.getTstates() >= nextEvent) {
-                    updateScreen(clock.getTstates());
-                }
+        delay = delayAt[address >>> 14];
+        clock.addTstates(delay[clock.getTstates()] + 3);
+        if (delay != noDelay && memory.isScreenByteModified(address, msb)) {
+            if (clock.getTstates() >= nextEvent) {
+                logScreenWrite(address);
+            } else {
                 notifyScreenWrite(address);
             }
-        } else {
-            clock.addTstates(3);
         }
 
         memory.writeByte(address, msb);
     }
 
+    /*
+     * LDIR/LDDR con la instrucción, el origen y el destino en páginas sin
+     * contención: cada iteración son 21 t-estados justos y la memoria se
+     * copia de una vez. La pantalla está siempre en una página con
+     * contención, así que no hay nada que redibujar. Sin pasar del final
+     * del frame, la INT no puede activarse por el camino.
+     */
+    @Override
+    public int copyBlock(int pc, int from, int to, int count, boolean increment,
+        int statesLimit) {
+
+        if (contendedRamPage[from >>> 14] || contendedRamPage[to >>> 14]
+            || contendedRamPage[pc >>> 14] || pc == 0xffff
+            || contendedRamPage[(pc + 1) >>> 14]) {
+            return 0;
+        }
+
+        statesLimit = Math.min(statesLimit, spectrumModel.tstatesFrame);
+
+        // Cada iteración comprueba el límite al empezar y tras el prefijo ED
+        int room = statesLimit - clock.getTstates() - 4;
+        if (room <= 0) {
+            return 0;
+        }
+        count = Math.min(count, (room + 20) / 21);
+
+        if (increment) {
+            count = Math.min(count, Math.min(0x10000 - from, 0x10000 - to));
+        } else {
+            count = Math.min(count, Math.min(from + 1, to + 1));
+        }
+
+        count = Math.min(uncontendedLength(from, count, increment),
+            uncontendedLength(to, count, increment));
+
+        // Sin escribir sobre el propio LDIR/LDDR
+        count = memory.writableLength(to, count, increment, pc);
+        count = memory.writableLength(to, count, increment, pc + 1);
+
+        if (count > 0) {
+            clock.addTstates(21 * count);
+            memory.copyBlock(from, to, count, increment);
+        }
+
+        return count;
+    }
+
+    /*
+     * El HALT no escribe en memoria ni toca la ULA, así que puede llegar de
+     * una vez hasta el límite, que ya incluye el siguiente evento del Clock.
+     * Sólo la contención obliga a contar los M1 uno a uno.
+     */
+    @Override
+    public int haltCycles(int address, int statesLimit) {
+
+        statesLimit = Math.min(statesLimit, spectrumModel.tstatesFrame);
+
+        int start = clock.getTstates();
+        if (start >= statesLimit) {
+            return 0;
+        }
+
+        int count;
+        int tstates;
+        if (contendedRamPage[address >>> 14]) {
+            count = 0;
+            tstates = start;
+            do {
+                tstates += delayTstates[tstates] + 4;
+                count++;
+            } while (tstates < statesLimit);
+        } else {
+            count = (statesLimit - start + 3) >>> 2;
+            tstates = start + 4 * count;
+        }
+
+        clock.addTstates(tstates - start);
+        return count;
+    }
+
+    // Bytes seguidos sin contención a partir de address, hasta length
+    private int uncontendedLength(int address, int length, boolean increment) {
+        int run = 0;
+
+        while (run < length && !contendedRamPage[address >>> 14]) {
+            int inPage = increment ? 0x4000 - (address & 0x3fff) : (address & 0x3fff) + 1;
+            run += inPage;
+            address = increment ? address + inPage : address - inPage;
+        }
+
+        return Math.min(run, length);
+    }
+
     @Override
     public void addressOnBus(int address, int tstates) {
-        if (contendedRamPage[address >>> 14]
-            && spectrumModel.codeModel != MachineTypes.CodeModel.SPECTRUMPLUS3) {
+        byte delay[] = busDelayAt[address >>> 14];
+        if (delay == noDelay) {
+            clock.addTstates(tstates);
+        } else {
             for (int idx = 0; idx < tstates; idx++) {
-                clock.addTstates(delayTstates[clock.getTstates()] + 1);
+                clock.addTstates(delay[clock.getTstates()] + 1);
             }
-        } else {
-            clock.addTstates(tstates);
         }
     }
 
@@ -1096,6 +1661,11 @@ public class Spectrum extends z80core.MemIoOps implements Runnable, z80core.Noti
         // ULA Port
         if ((port & 0x0001) == 0) {
 //            System.out.println(String.format("InPort: %04X, Frame: %d", port, clock.getFrames()));
+            // Un flanco de la cinta puede vencer dentro de esta misma
+            // instrucción, y la lectura tiene que verlo ya
+            if (clock.getTstates() >= clock.getDeadline()) {
+                clock.runEvents();
+            }
             earBit = tape.getEarBit();
             if (joystick1 == null || tape.isTapeRunning()) {
                 return keyboard.readKeyboardPort(port, false) & earBit;
@@ -1174,13 +1744,15 @@ public class Spectrum extends z80core.MemIoOps implements Runnable, z80core.Noti
              * http://www.speccy.org/foro/viewtopic.php?f=8&t=2374
              */
             if ((port & 0x8002) == 0 && spectrumModel == MachineTypes.SPECTRUM128K) {
-                memory.setPort7ffd(floatbus);
                 // Si ha cambiado la pantalla visible hay que invalidar
                 if ((port7ffd & 0x08) != (floatbus & 0x08)) {
+                    updateScreen(clock.getTstates());
                     invalidateScreen(true);
                 }
+                memory.setPort7ffd(floatbus);
                 // En el 128k las páginas impares son contended
                 contendedRamPage[3] = contendedIOPage[3] = (floatbus & 0x01) != 0;
+                updateContention();
                 port7ffd = floatbus;
             }
         }
@@ -1260,7 +1832,7 @@ public class Spectrum extends z80core.MemIoOps implements Runnable, z80core.Noti
 
                 if (!tape.isTapePlaying()) {
                     int spkMic = sp_volt[value >> 3 & 3];
-                    if (enabledSound && spkMic != speaker) {
+                    if (enabledSound && !speculating && spkMic != speaker) {
                         audio.updateAudio(clock.getTstates(), speaker);
                         speaker = spkMic;
                     }
@@ -1294,6 +1866,7 @@ public class Spectrum extends z80core.MemIoOps implements Runnable, z80core.Noti
                     memory.setPort7ffd(value);
                     // En el 128k las páginas impares son contended
                     contendedRamPage[3] = contendedIOPage[3] = (value & 0x01) != 0;
+                    updateContention();
                     port7ffd = value;
                 }
             }
@@ -1313,6 +1886,7 @@ public class Spectrum extends z80core.MemIoOps implements Runnable, z80core.Noti
                     memory.setPort7ffd(value);
                     // En el +3 las páginas 4 a 7 son contended
                     contendedRamPage[3] = memory.getPlus3HighPage() > 3;
+                    updateContention();
                     port7ffd = value;
                 }
 
@@ -1338,6 +1912,7 @@ public class Spectrum extends z80core.MemIoOps implements Runnable, z80core.Noti
                         contendedRamPage[1] = true;
                         contendedRamPage[3] = memory.getPlus3HighPage() > 3;
                     }
+                    updateContention();
 
 //                if (((port1ffd ^ value) & 0x08) != 0) {
 //                    System.out.println(String.format("Motor %b", (value & 0x08) != 0));
@@ -1357,7 +1932,7 @@ public class Spectrum extends z80core.MemIoOps implements Runnable, z80core.Noti
                 if ((port & 0x4000) != 0) {
                     ay8912.setAddressLatch(value);
                 } else {
-                    if (enabledSound && ay8912.getAddressLatch() < 14) {
+                    if (enabledSound && !speculating && ay8912.getAddressLatch() < 14) {
                         ay8912.updateAY(clock.getTstates());
                     }
                     ay8912.writeRegister(value);
@@ -1373,7 +1948,7 @@ public class Spectrum extends z80core.MemIoOps implements Runnable, z80core.Noti
                 }
 
                 if ((port & 0xff) == 0x5f) {
-                    if (enabledSound && ay8912.getAddressLatch() < 14) {
+                    if (enabledSound && !speculating && ay8912.getAddressLatch() < 14) {
                         ay8912.updateAY(clock.getTstates());
                     }
                     ay8912.writeRegister(value);
@@ -1383,6 +1958,10 @@ public class Spectrum extends z80core.MemIoOps implements Runnable, z80core.Noti
 
             // ULAplus ports
             if (specSettings.isULAplus() && (port & 0x0004) == 0) {
+                // Lo que ya ha pasado por el haz se pinta con la paleta de antes
+                if (clock.getTstates() >= nextEvent) {
+                    updateScreen(clock.getTstates());
+                }
                 // Control port (write only)
                 if ((port & 0x4000) == 0) {
                     if ((value & 0x40) != 0) {
@@ -1442,9 +2021,6 @@ public class Spectrum extends z80core.MemIoOps implements Runnable, z80core.Noti
 
         if (contendedIOPage[port >>> 14]) {
             clock.addTstates(delayTstates[clock.getTstates()] + 1);
-            if (clock.getTstates() >= nextEvent) {
-                updateScreen(clock.getTstates());
-            }
         } else {
             clock.addTstates(1);
         }
@@ -1459,9 +2035,6 @@ public class Spectrum extends z80core.MemIoOps implements Runnable, z80core.Noti
 
         if (specSettings.isULAplus() && (port & 0x0004) == 0) {
             clock.addTstates(delayTstates[clock.getTstates()] + 3);
-            if (clock.getTstates() >= nextEvent) {
-                updateScreen(clock.getTstates());
-            }
             return;
         }
 
@@ -1469,17 +2042,8 @@ public class Spectrum extends z80core.MemIoOps implements Runnable, z80core.Noti
             if (contendedIOPage[port >>> 14]) {
                 // A0 == 1 y es contended IO
                 clock.addTstates(delayTstates[clock.getTstates()] + 1);
-                if (clock.getTstates() >= nextEvent) {
-                    updateScreen(clock.getTstates());
-                }
                 clock.addTstates(delayTstates[clock.getTstates()] + 1);
-                if (clock.getTstates() >= nextEvent) {
-                    updateScreen(clock.getTstates());
-                }
                 clock.addTstates(delayTstates[clock.getTstates()] + 1);
-                if (clock.getTstates() >= nextEvent) {
-                    updateScreen(clock.getTstates());
-                }
             } else {
                 // A0 == 1 y no es contended IO
                 clock.addTstates(3);
@@ -1487,9 +2051,6 @@ public class Spectrum extends z80core.MemIoOps implements Runnable, z80core.Noti
         } else {
             // A0 == 0
             clock.addTstates(delayTstates[clock.getTstates()] + 3);
-            if (clock.getTstates() >= nextEvent) {
-                updateScreen(clock.getTstates());
-            }
         }
     }
 
@@ -1549,6 +2110,10 @@ public class Spectrum extends z80core.MemIoOps implements Runnable, z80core.Noti
             case 0x0556:
                 // LD_BYTES routine in Spectrum ROM at address 0x0556
                 if (loadTrap && memory.isSpectrumRom() && tape.isTapeReady()) {
+                    // La carga escribe en memoria sin pasar por poke8
+                    if (flashload && clock.getTstates() >= nextEvent) {
+                        updateScreen(clock.getTstates());
+                    }
                     if (flashload && tape.flashLoad(memory)) {
                         invalidateScreen(true); // thanks Andrew Owen
                         return 0xC9; // RET opcode
@@ -1635,7 +2200,7 @@ public class Spectrum extends z80core.MemIoOps implements Runnable, z80core.Noti
 
         if (filename.getName().toLowerCase().endsWith(".png")) {
             try {
-                ImageIO.write(tvImage, "png", filename);
+                ImageIO.write(tvFrames.getFrontImage(), "png", filename);
             } catch (IOException ioExcpt) {
                 Logger.getLogger(Spectrum.class.getName()).log(Level.SEVERE, null, ioExcpt);
             }
@@ -1680,6 +2245,7 @@ public class Spectrum extends z80core.MemIoOps implements Runnable, z80core.Noti
                             ULAPlusPrecompPalette[palette][color] = (red << 16) | (green << 8) | blue;
                         }
                     }
+                    paletteVersion++;
                 }
                 return true;
             } catch (FileNotFoundException excpt) {
@@ -1718,19 +2284,12 @@ public class Spectrum extends z80core.MemIoOps implements Runnable, z80core.Noti
     }
 
     private void enableSound() {
-        if (paused || muted || enabledSound || framesByInt > 1) {
+        if (paused || muted || enabledSound || framesByInt > 1 || maxSpeed) {
             return;
         }
 
         audio.open(spectrumModel, ay8912, enabledAY,
-                settings.getSpectrumSettings().isHifiSound() ? 48000 : 32000);
-
-        if (!paused) {
-            if (taskFrame != null) {
-                taskFrame.cancel();
-                taskFrame = null;
-            }
-        }
+                settings.getSpectrumSettings().isHifiSound() ? 48000 : 32000, !wallClockSync);
 
         enabledSound = true;
     }
@@ -1743,10 +2302,7 @@ public class Spectrum extends z80core.MemIoOps implements Runnable, z80core.Noti
         enabledSound = false;
         audio.endFrame();
         audio.close();
-        if (!paused) {
-            taskFrame = new SpectrumTimer(this);
-            timerFrame.scheduleAtFixedRate(taskFrame, 10, 20);
-        }
+        pacer.reset();
     }
 
     public void changeSpeed(int speed) {
@@ -1815,13 +2371,14 @@ public class Spectrum extends z80core.MemIoOps implements Runnable, z80core.Noti
         0xffffff  /* blanco brillante */
     };
 
-    public static int[] Paleta = Paleta48k;
+    // La paleta del modelo de esta máquina, que puede no ser el de otras
+    private int Paleta[] = Paleta48k;
     // Tablas de valores de Paper/Ink. Para cada valor general de atributo,
     // corresponde una entrada en la tabla que hace referencia al color
     // en la paleta. Para los valores superiores a 127, los valores de Paper/Ink
     // ya están cambiados, lo que facilita el tratamiento del FLASH.
-    private static final int Paper[] = new int[256];
-    private static final int Ink[] = new int[256];
+    private final int Paper[] = new int[256];
+    private final int Ink[] = new int[256];
     // Tabla de correspondencia entre la dirección de pantalla y su atributo - 0x4000
     public final int scr2attr[] = new int[6144];
     // Tabla de correspondencia entre cada atributo y el primer byte del carácter
@@ -1847,6 +2404,17 @@ public class Spectrum extends z80core.MemIoOps implements Runnable, z80core.Noti
     // Secuencia de t-states que hay que ejecutar para ir actualizando la pantalla
     int stepStates[] = new int[6144];
     private int step;
+    // El t-state de stepStates que le toca a cada dirección de pantalla
+    private final int scr2states[] = new int[6144];
+    // Escrituras en pantalla pendientes de pintar: el t-state, y la dirección
+    // (0-6911) junto con el valor que había antes en los 8 bits bajos
+    private final int screenLogTstates[] = new int[8192];
+    private final int screenLog[] = new int[8192];
+    private int screenLogLength;
+    // Para updateScreenFromLog: la pantalla que se va deshaciendo y cuántas
+    // escrituras anteriores al paso en curso han marcado cada byte
+    private final byte screenAt[] = new byte[6912];
+    private final int writesBefore[] = new int[6144];
     // Constante que indica que no hay un evento próximo
     // El valor de la constante debe ser mayor que cualquier spectrumModel.tstatesframe
     private final int NO_EVENT = 0x1234567;
@@ -1861,12 +2429,25 @@ public class Spectrum extends z80core.MemIoOps implements Runnable, z80core.Noti
     private int BOTTOM_BORDER = 24;
     private int SCREEN_HEIGHT = TOP_BORDER + 192 + BOTTOM_BORDER;
     private int flash = 0x7f; // 0x7f == ciclo off, 0xff == ciclo on
-    private BufferedImage tvImage;     // imagen actualizada al final de cada frame
+    private TripleBuffer tvFrames;     // imágenes de los frames terminados
     private BufferedImage inProgressImage; // imagen del borde
     private int dataInProgress[];
-    private Graphics2D gcTvImage;
+    // Pasa los bytes de la pantalla a pixels de dataInProgress
+    private static final PixelKernels pixelKernels = PixelKernels.getDefault();
     // t-states del último cambio de border
     private int lastChgBorder;
+    // Tramos de borde pendientes de pintar: desde qué t-state, hasta cuál y
+    // con qué color
+    private final int borderLogFrom[] = new int[4096];
+    private final int borderLogTo[] = new int[4096];
+    private final int borderLogColor[] = new int[4096];
+    private int borderLogLength;
+    // Tramos de t-states del borde que se pintan en pixels seguidos, y el
+    // pixel en que empieza cada uno
+    private final int borderSpanFrom[] = new int[1024];
+    private final int borderSpanTo[] = new int[1024];
+    private final int borderSpanPix[] = new int[1024];
+    private int nBorderSpans;
     // veces que ha cambiado el borde en el último frame
     //private int nBorderChanges;
     /*
@@ -1888,15 +2469,15 @@ public class Spectrum extends z80core.MemIoOps implements Runnable, z80core.Noti
     private boolean ULAPlusActive;
     // ULAplus precomputed color palette
     private int ULAPlusPrecompPalette[][];
+    // Cambia cada vez que cambia algún color de Paleta o de la ULAplus
+    private volatile int paletteVersion;
     
     private final Rectangle screenRect = new Rectangle();
     private int firstBorderPix, lastBorderPix;
     private final Rectangle borderRect = new Rectangle();
 
     private void initGFX() {
-        tvImage = new BufferedImage(SCREEN_WIDTH, SCREEN_HEIGHT,
-            BufferedImage.TYPE_INT_RGB);
-        gcTvImage = tvImage.createGraphics();
+        tvFrames = new TripleBuffer(SCREEN_WIDTH, SCREEN_HEIGHT);
         inProgressImage =
             new BufferedImage(SCREEN_WIDTH, SCREEN_HEIGHT, BufferedImage.TYPE_INT_RGB);
         dataInProgress =
@@ -1947,8 +2528,37 @@ public class Spectrum extends z80core.MemIoOps implements Runnable, z80core.Noti
         }
     }
 
+    /*
+     * Los frames terminados, para quien los muestre. Cambian con el tamaño
+     * del borde.
+     */
+    public TripleBuffer getTvFrames() {
+        return tvFrames;
+    }
+
+    /*
+     * Los colores que puede tener un pixel: los 16 del modelo y los 64 de
+     * la paleta ULAplus. Se pueden leer desde otro hilo mientras cambian;
+     * quien los lea debe comprobar que el color de cada pixel está entre los
+     * que ha leído.
+     */
+    public int getPaletteVersion() {
+        return paletteVersion;
+    }
+
+    public void getPaletteColors(int colors[]) {
+        System.arraycopy(Paleta, 0, colors, 0, 16);
+        for (int group = 0; group < 4; group++) {
+            System.arraycopy(ULAPlusPrecompPalette[group], 0, colors, 16 + group * 16, 16);
+        }
+    }
+
+    /*
+     * La imagen del último frame terminado. Es un atajo de
+     * getTvFrames().getFrontImage(), así que quien lo use es el lector.
+     */
     public BufferedImage getTvImage() {
-        return tvImage;
+        return tvFrames.getFrontImage();
     }
     
     public void setBorderMode(int mode) {
@@ -1984,12 +2594,7 @@ public class Spectrum extends z80core.MemIoOps implements Runnable, z80core.Noti
         SCREEN_WIDTH = LEFT_BORDER + 256 + RIGHT_BORDER;
         SCREEN_HEIGHT = TOP_BORDER + 192 + BOTTOM_BORDER;
         
-        tvImage = new BufferedImage(SCREEN_WIDTH, SCREEN_HEIGHT,
-            BufferedImage.TYPE_INT_RGB);
-        if (gcTvImage != null) {
-            gcTvImage.dispose();
-        }
-        gcTvImage = tvImage.createGraphics();
+        tvFrames = new TripleBuffer(SCREEN_WIDTH, SCREEN_HEIGHT);
 
         inProgressImage =
             new BufferedImage(SCREEN_WIDTH, SCREEN_HEIGHT, BufferedImage.TYPE_INT_RGB);
@@ -2130,6 +2735,11 @@ public class Spectrum extends z80core.MemIoOps implements Runnable, z80core.Noti
         return row * SCREEN_WIDTH + col * 2;
     }
 
+    /*
+     * Un OUT que cambia el color del borde sólo apunta el tramo que acaba
+     * de terminar con el color de antes. Los pixels se pintan todos juntos
+     * en flushBorder, antes de volcar la imagen.
+     */
     private void updateBorder(int tstates) {
 
         if (tstates < lastChgBorder || lastChgBorder > lastBorderUpdate) {
@@ -2148,27 +2758,13 @@ public class Spectrum extends z80core.MemIoOps implements Runnable, z80core.Noti
 
         tstates += spectrumModel.outBorderOffset;
         tstates &= 0x00fffffc;
-        while (lastChgBorder < tstates && lastChgBorder < lastBorderUpdate) {
-            int idxColor = states2border[lastChgBorder];
-            lastChgBorder += 4;
-
-            if (idxColor == 0xf0cab0ba || nowColor == dataInProgress[idxColor]) {
-                continue;
-            }
-
-            dataInProgress[idxColor] = nowColor;
-            dataInProgress[idxColor + 1] = nowColor;
-            dataInProgress[idxColor + 2] = nowColor;
-            dataInProgress[idxColor + 3] = nowColor;
-            dataInProgress[idxColor + 4] = nowColor;
-            dataInProgress[idxColor + 5] = nowColor;
-            dataInProgress[idxColor + 6] = nowColor;
-            dataInProgress[idxColor + 7] = nowColor;
-            borderDirty = true;
-            if (firstBorderPix > idxColor) {
-                firstBorderPix = idxColor;
+        if (lastChgBorder < tstates && lastChgBorder < lastBorderUpdate) {
+            if (borderLogLength == borderLogColor.length) {
+                flushBorder();
             }
-            lastBorderPix = idxColor;
+            borderLogFrom[borderLogLength] = lastChgBorder;
+            borderLogTo[borderLogLength] = Math.min(tstates, lastBorderUpdate);
+            borderLogColor[borderLogLength++] = nowColor;
         }
         
         lastChgBorder = tstates;
@@ -2176,66 +2772,244 @@ public class Spectrum extends z80core.MemIoOps implements Runnable, z80core.Noti
 //                lastChgBorder, nBorderChanges));
     }
 
+    // Pinta los tramos de borde apuntados por updateBorder
+    private void flushBorder() {
+        int span = 0;
+        int lastFrom = 0;
+
+        for (int entry = 0; entry < borderLogLength; entry++) {
+            int from = borderLogFrom[entry];
+            int to = borderLogTo[entry];
+
+            // Dentro de un frame los tramos van en orden; al pasar al
+            // siguiente se vuelve a empezar por arriba
+            if (from < lastFrom) {
+                span = 0;
+            }
+            lastFrom = from;
+
+            while (span < nBorderSpans && borderSpanTo[span] <= from) {
+                span++;
+            }
+
+            for (int idx = span; idx < nBorderSpans && borderSpanFrom[idx] < to; idx++) {
+                int first = Math.max(from, borderSpanFrom[idx]) - borderSpanFrom[idx];
+                int last = ((Math.min(to, borderSpanTo[idx]) + 3) & ~3) - borderSpanFrom[idx];
+                fillBorder(borderSpanPix[idx] + first * 2, borderSpanPix[idx] + last * 2,
+                    borderLogColor[entry]);
+            }
+        }
+
+        borderLogLength = 0;
+    }
+
+    /*
+     * Cada 4 t-states del borde son 8 pixels del mismo color, así que basta
+     * mirar el primero de cada grupo para saber si cambia. Sólo se rellena
+     * entre el primer grupo y el último que cambian, para que firstBorderPix
+     * y lastBorderPix, y con ellos borderRect, sigan siendo ajustados.
+     */
+    private void fillBorder(int from, int to, int color) {
+        while (from < to && dataInProgress[from] == color) {
+            from += 8;
+        }
+
+        if (from >= to) {
+            return;
+        }
+
+        int last = to - 8;
+        while (dataInProgress[last] == color) {
+            last -= 8;
+        }
+
+        Arrays.fill(dataInProgress, from, last + 8, color);
+        borderDirty = true;
+        if (firstBorderPix > from) {
+            firstBorderPix = from;
+        }
+        lastBorderPix = last;
+    }
+
+    // Junta los grupos de states2border que son pixels seguidos
+    private void buildBorderSpans() {
+        int prev = 0xf0cab0ba;
+
+        nBorderSpans = borderLogLength = 0;
+        for (int tstates = firstBorderUpdate; tstates < lastBorderUpdate; tstates += 4) {
+            int pix = states2border[tstates];
+            if (pix != 0xf0cab0ba) {
+                if (prev != 0xf0cab0ba && pix == prev + 8) {
+                    borderSpanTo[nBorderSpans - 1] = tstates + 4;
+                } else {
+                    borderSpanFrom[nBorderSpans] = tstates;
+                    borderSpanTo[nBorderSpans] = tstates + 4;
+                    borderSpanPix[nBorderSpans++] = pix;
+                }
+            }
+            prev = pix;
+        }
+    }
+
     public void updateScreen(int tstates) {
-        int fromAddr, addrBuf;
-        int paper, ink;
-        byte scrByte;
-        int attr;
 //        System.out.println(String.format("from: %d\tto: %d", lastScreenState, toTstates));
 
+        if (screenLogLength > 0) {
+            updateScreenFromLog(tstates);
+            return;
+        }
+
         while (step < stepStates.length && stepStates[step] <= tstates) {
-            fromAddr = states2scr[stepStates[step++]] & 0x1fff;
+            int fromAddr = states2scr[stepStates[step++]] & 0x1fff;
 
             if (!dirtyByte[fromAddr]) {
                 continue;
             }
 
-            int scan = scanLineTable[fromAddr];
-            if (firstScanLine > scan) {
-                firstScanLine = scan;
-            }
+            paintScreenByte(fromAddr, memory.readScreenByte(fromAddr),
+                memory.readScreenByte(scr2attr[fromAddr]) & 0xff);
+            dirtyByte[fromAddr] = false;
+        }
 
-            if (lastScanLine < scan) {
-                lastScanLine = scan;
-            }
+        nextEvent = step < stepStates.length ? stepStates[step] : NO_EVENT;
+    }
+
+    /*
+     * Lo mismo que updateScreen, pero con escrituras en el registro. Cada
+     * byte tiene que pintarse como estaba cuando el haz pasó por él, y en
+     * memoria está como ha quedado después. Se parte de una copia de la
+     * pantalla actual y se recorren los pasos hacia atrás deshaciendo en
+     * ella las escrituras hechas en ese t-estado o después: lo que queda es
+     * lo que se habría leído en el momento del paso. Las marcas de byte sucio
+     * de las escrituras se cuentan igual, para saber si en ese momento ya
+     * estaba marcado.
+     */
+    private void updateScreenFromLog(int tstates) {
+        int first = step;
+        int last = step;
+        while (last < stepStates.length && stepStates[last] <= tstates) {
+            last++;
+        }
 
-            int column = fromAddr & 0x1f;
+        memory.copyScreen(screenAt);
+        for (int entry = 0; entry < screenLogLength; entry++) {
+            countScreenWrite(screenLog[entry] >>> 8, 1);
+        }
 
-            if (column < leftCol) {
-                leftCol = column;
+        int entry = screenLogLength - 1;
+        for (int idx = last - 1; idx >= first; idx--) {
+            int states = stepStates[idx];
+            while (entry >= 0 && screenLogTstates[entry] >= states) {
+                int write = screenLog[entry--];
+                screenAt[write >>> 8] = (byte) write;
+                countScreenWrite(write >>> 8, -1);
             }
-            if (column > rightCol) {
-                rightCol = column;
+
+            int fromAddr = states2scr[states] & 0x1fff;
+            if (dirtyByte[fromAddr] || writesBefore[fromAddr] > 0) {
+                paintScreenByte(fromAddr, screenAt[fromAddr], screenAt[scr2attr[fromAddr]] & 0xff);
+                dirtyByte[fromAddr] = false;
             }
+        }
 
-            scrByte = memory.readScreenByte(fromAddr);
-            attr = memory.readScreenByte(scr2attr[fromAddr]) & 0xff;
-            addrBuf = bufAddr[fromAddr];
+        while (entry >= 0) {
+            countScreenWrite(screenLog[entry--] >>> 8, -1);
+        }
 
-            if (ULAPlusActive) {
-                ink = ULAPlusPrecompPalette[attr >>> 6][attr & 0x07];
-                paper = ULAPlusPrecompPalette[attr >>> 6][((attr & 0x38) >>> 3) | 0x08];
+        // Las escrituras que el haz no ha llegado a ver en este tramo
+        // dejan el byte marcado, como haría notifyScreenWrite
+        int from = first < stepStates.length ? stepStates[first] : NO_EVENT;
+        for (entry = 0; entry < screenLogLength; entry++) {
+            int address = screenLog[entry] >>> 8;
+            int states = screenLogTstates[entry];
+            if (address < 6144) {
+                markUnseenWrite(address, states, from, tstates);
             } else {
-                if (attr > 0x7f) {
-                    attr &= flash;
+                int addr = attr2scr[address & 0x3ff] & 0x1fff;
+                for (int scan = 0; scan < 2048; scan += 256) {
+                    markUnseenWrite(addr + scan, states, from, tstates);
                 }
-                ink = Ink[attr];
-                paper = Paper[attr];
             }
+        }
 
-            for (int mask = 0x80; mask != 0; mask >>= 1) {
-                if ((scrByte & mask) != 0) {
-                    dataInProgress[addrBuf++] = ink;
-                } else {
-                    dataInProgress[addrBuf++] = paper;
-                }
+        screenLogLength = 0;
+        step = last;
+        nextEvent = step < stepStates.length ? stepStates[step] : NO_EVENT;
+    }
+
+    private void markUnseenWrite(int address, int states, int from, int to) {
+        int stepState = scr2states[address];
+        if (stepState < from || stepState > to || states >= stepState) {
+            dirtyByte[address] = true;
+        }
+    }
+
+    private void countScreenWrite(int address, int delta) {
+        if (address < 6144) {
+            writesBefore[address] += delta;
+        } else {
+            int addr = attr2scr[address & 0x3ff] & 0x1fff;
+            for (int scan = 0; scan < 2048; scan += 256) {
+                writesBefore[addr + scan] += delta;
             }
+        }
+    }
 
-            dirtyByte[fromAddr] = false;
-            screenDirty = true;
+    /*
+     * Escritura en pantalla con el haz ya en marcha: se apunta para pintar
+     * luego, en updateScreen, en lugar de ponerse al día aquí mismo. Con el
+     * registro lleno se vacía antes.
+     */
+    private void logScreenWrite(int address) {
+        if (screenLogLength == screenLog.length) {
+            updateScreen(clock.getTstates());
+            if (clock.getTstates() < nextEvent) {
+                notifyScreenWrite(address);
+                return;
+            }
         }
 
-        nextEvent = step < stepStates.length ? stepStates[step] : NO_EVENT;
+        screenLogTstates[screenLogLength] = clock.getTstates();
+        screenLog[screenLogLength++] = (address & 0x1fff) << 8 | (memory.readByte(address) & 0xff);
+    }
+
+    private void paintScreenByte(int fromAddr, byte scrByte, int attr) {
+        int paper, ink;
+
+        int scan = scanLineTable[fromAddr];
+        if (firstScanLine > scan) {
+            firstScanLine = scan;
+        }
+
+        if (lastScanLine < scan) {
+            lastScanLine = scan;
+        }
+
+        int column = fromAddr & 0x1f;
+
+        if (column < leftCol) {
+            leftCol = column;
+        }
+        if (column > rightCol) {
+            rightCol = column;
+        }
+
+        int addrBuf = bufAddr[fromAddr];
+
+        if (ULAPlusActive) {
+            ink = ULAPlusPrecompPalette[attr >>> 6][attr & 0x07];
+            paper = ULAPlusPrecompPalette[attr >>> 6][((attr & 0x38) >>> 3) | 0x08];
+        } else {
+            if (attr > 0x7f) {
+                attr &= flash;
+            }
+            ink = Ink[attr];
+            paper = Paper[attr];
+        }
+
+        pixelKernels.expandByte(dataInProgress, addrBuf, scrByte, ink, paper);
+
+        screenDirty = true;
     }
 
     private void notifyScreenWrite(int address) {
@@ -2280,6 +3054,7 @@ public class Spectrum extends z80core.MemIoOps implements Runnable, z80core.Noti
             }
             scan = tstates / spectrumModel.tstatesLine - spectrumModel.upBorderWidth;
             states2scr[tstates + 2] = scrAddr[scan] + col;
+            scr2states[(scrAddr[scan] + col) & 0x1fff] = tstates + 2;
             stepStates[step++] = tstates + 2;
         }
 
@@ -2294,6 +3069,7 @@ public class Spectrum extends z80core.MemIoOps implements Runnable, z80core.Noti
             states2border[tstates + 2] = states2border[tstates];
             states2border[tstates + 3] = states2border[tstates];
         }
+        buildBorderSpans();
 
         Arrays.fill(delayTstates, (byte) 0x00);
 
@@ -2330,6 +3106,7 @@ public class Spectrum extends z80core.MemIoOps implements Runnable, z80core.Noti
 
             scan = tstates / spectrumModel.tstatesLine - spectrumModel.upBorderWidth;
             states2scr[tstates] = scrAddr[scan] + col;
+            scr2states[(scrAddr[scan] + col) & 0x1fff] = tstates;
             stepStates[step++] = tstates;
         }
 
@@ -2344,6 +3121,7 @@ public class Spectrum extends z80core.MemIoOps implements Runnable, z80core.Noti
             states2border[tstates + 2] = states2border[tstates];
             states2border[tstates + 3] = states2border[tstates];
         }
+        buildBorderSpans();
 
         Arrays.fill(delayTstates, (byte) 0x00);
 
@@ -2380,6 +3158,7 @@ public class Spectrum extends z80core.MemIoOps implements Runnable, z80core.Noti
 
             scan = tstates / spectrumModel.tstatesLine - spectrumModel.upBorderWidth;
             states2scr[tstates + 2] = scrAddr[scan] + col;
+            scr2states[(scrAddr[scan] + col) & 0x1fff] = tstates + 2;
             stepStates[step++] = tstates + 2;
         }
 
@@ -2394,6 +3173,7 @@ public class Spectrum extends z80core.MemIoOps implements Runnable, z80core.Noti
             states2border[tstates + 2] = states2border[tstates];
             states2border[tstates + 3] = states2border[tstates];
         }
+        buildBorderSpans();
 
         // Diga lo que diga la FAQ de WoS, los estados de espera comienzan
         // en 14361 y no en 14365. El programa TSTP3 de Pedro Gimeno lo
@@ -2430,6 +3210,7 @@ public class Spectrum extends z80core.MemIoOps implements Runnable, z80core.Noti
 
         ULAPlusPrecompPalette[register >>> 4][register & 0x0f] =
             (red << 16) | (green << 8) | blue;
+        paletteVersion++;
     }
     
     public boolean startRecording() {
@@ -2472,6 +3253,7 @@ public class Spectrum extends z80core.MemIoOps implements Runnable, z80core.Noti
     private void pageLec(int value) {
         if (!memory.isLecPaged()) {
             contendedRamPage[1] = contendedIOPage[1] = false;
+            updateContention();
             z80.setBreakpoint(0x0066, false); // multiface
             z80.setBreakpoint(0x04D0, false); // saveTrap
             z80.setBreakpoint(0x0556, false); // loadTrap
@@ -2488,6 +3270,7 @@ public class Spectrum extends z80core.MemIoOps implements Runnable, z80core.Noti
     private void unpageLec() {
         memory.setPortFD(0);
         contendedRamPage[1] = contendedIOPage[1] = true;
+        updateContention();
         z80.setBreakpoint(0x0066, specSettings.isMultifaceEnabled());
         saveTrap = settings.getTapeSettings().isEnableSaveTraps();
         z80.setBreakpoint(0x04D0, saveTrap);
@@ -0,0 +1,23 @@
+/*
+ * Slot para guardar la máquina en memoria y recuperarla al momento.
+ */
+package machine;
+
+import snapshots.SpectrumState;
+
+/**
+ * Un hueco reutilizable para Spectrum.quickSave/quickLoad. La RAM se reserva
+ * al crearlo y el estado en el primer quickSave; a partir de ahí guardar y
+ * recuperar sólo copia, así que un slot se puede usar en cada frame.
+ *
+ * @author agent
+ */
+public final class StateSlot {
+
+    final byte ram[][] = new byte[Memory.RAM_BANKS][0x2000];
+    SpectrumState state;
+
+    public boolean isEmpty() {
+        return state == null;
+    }
+}
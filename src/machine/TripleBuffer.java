@@ -0,0 +1,66 @@
+/*
+ * TripleBuffer: paso de los frames de la emulación a la pantalla.
+ */
+package machine;
+
+import java.awt.image.BufferedImage;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tres imágenes que se turnan entre el hilo de la emulación, que escribe, y
+ * el que muestra los frames (el EDT), que lee, sin que ninguno tenga que
+ * esperar al otro. La emulación escribe siempre en la suya, que nadie más
+ * mira, y al terminar el frame la cambia por la que está lista para
+ * mostrarse. El lector, cuando hay una lista que aún no ha visto, la cambia
+ * por la que tenía. Los dos cambios son un getAndSet de un AtomicInteger, así
+ * que nunca hay dos hilos en la misma imagen ni se ve un frame a medias, y el
+ * lector siempre se queda con el último terminado: si la emulación va más
+ * deprisa que la pantalla, los intermedios simplemente no se ven.
+ *
+ * Sólo puede haber un lector a la vez.
+ *
+ * @author agent
+ */
+public final class TripleBuffer {
+
+    // En ready va el índice de la imagen lista para mostrar y, con FRESH,
+    // si el lector aún no la ha recogido
+    private static final int FRESH = 4;
+    private static final int INDEX = 3;
+
+    private final BufferedImage images[] = new BufferedImage[3];
+    private final AtomicInteger ready = new AtomicInteger(1);
+    // back sólo lo usa la emulación, front sólo el lector
+    private int back = 0, front = 2;
+
+    TripleBuffer(int width, int height) {
+        for (int idx = 0; idx < images.length; idx++) {
+            images[idx] = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        }
+    }
+
+    /*
+     * Copia el frame terminado a la imagen de la emulación y la deja lista
+     * para mostrarse. Se copia con setDataElements y no a través del array
+     * del DataBuffer para que Java2D pueda seguir teniendo la imagen en la
+     * tarjeta gráfica.
+     */
+    void publish(int pixels[]) {
+        BufferedImage image = images[back];
+        image.getRaster().setDataElements(0, 0, image.getWidth(), image.getHeight(), pixels);
+        back = ready.getAndSet(back | FRESH) & INDEX;
+    }
+
+    /**
+     * El último frame terminado. La imagen es del lector hasta la siguiente
+     * llamada.
+     *
+     * @return la imagen del último frame
+     */
+    public BufferedImage getFrontImage() {
+        if ((ready.get() & FRESH) != 0) {
+            front = ready.getAndSet(front) & INDEX;
+        }
+        return images[front];
+    }
+}
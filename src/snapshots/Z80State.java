@@ -51,6 +51,9 @@ public class Z80State {
     private IntMode modeINT = IntMode.IM0;
     // halted == true cuando la CPU está ejecutando un HALT (28/03/2010)
     private boolean halted = false;
+    // El prefijo (0xDD, 0xED o 0xFD) ya leído de una instrucción que el
+    // frame dejó a medias, o 0x00. No va en los snapshots.
+    private int prefixOpcode = 0x00;
     /**
      * Registro interno que usa la CPU de la siguiente forma
      *
@@ -415,4 +418,18 @@ public class Z80State {
     public void setFlagQ(boolean flagQ) {
         this.flagQ = flagQ;
     }
+
+    /**
+     * @return the prefixOpcode
+     */
+    public int getPrefixOpcode() {
+        return prefixOpcode;
+    }
+
+    /**
+     * @param prefixOpcode the prefixOpcode to set
+     */
+    public void setPrefixOpcode(int prefixOpcode) {
+        this.prefixOpcode = prefixOpcode;
+    }
 }
@@ -72,9 +72,9 @@ public class Microdrive {
     private final Clock clock;
     private long startGap;
 
-    public Microdrive() {
+    public Microdrive(Clock clock) {
         
-        clock = Clock.getInstance();
+        this.clock = clock;
         isCartridge = mdrFile = false;
         writeProtected = true;
         cartridgePos = 0;
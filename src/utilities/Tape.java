@@ -125,10 +125,10 @@ public class Tape implements machine.ClockTimeoutListener {
     private static final String tzxCreator = "TZX created with JSpeccy v0.94";
     private boolean manualMode = false;
 
-    public Tape(TapeSettingsType tapeSettings) {
+    public Tape(TapeSettingsType tapeSettings, Clock clock) {
         blockListeners = new ArrayList<>();
         stateListeners = new ArrayList<>();
-        clock = Clock.getInstance();
+        this.clock = clock;
         settings = tapeSettings;
         statePlay = State.STOP;
         tapePlaying = tapeRecording = false;
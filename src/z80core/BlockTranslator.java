@@ -0,0 +1,761 @@
+/*
+ * Traductor de bloques básicos calientes a bytecode de la JVM.
+ */
+package z80core;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Array;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+
+/**
+ * Cuando una dirección se ejecuta HOT_THRESHOLD veces, se traduce el bloque
+ * básico que empieza en ella (hasta el primer salto, llamada, retorno, EI o
+ * HALT) a una clase oculta con un único método. Cada instrucción del bloque
+ * hace las mismas llamadas a MemIoOps que el intérprete, así que la cuenta
+ * de t-estados y la contención son exactas; lo que desaparece es el bucle
+ * de fetch/decode, el estado de los prefijos y la comprobación de
+ * breakpoints, NMI e INT allí donde no hace falta.
+ *
+ * Los bloques se guardan por página física de 8K (MemIoOps.getCodePage),
+ * de modo que los de un banco que deja de estar visible se conservan para
+ * cuando vuelva. No se invalidan cuando se escribe en memoria: en el
+ * Spectrum el código comparte página con la pila y las variables, y un
+ * contador de escrituras por página los tiraría continuamente. En su lugar,
+ * el opcode que devuelve fetchOpcode, que hay que leer de todas formas por
+ * la temporización, se compara con el traducido. Si no coincide, el
+ * intérprete termina esa instrucción y el bloque se descarta. Los operandos
+ * inmediatos se leen siempre de memoria, así que pueden cambiar sin
+ * invalidar nada.
+ *
+ * Las clases ocultas necesitan Java 15. Con versiones anteriores la
+ * traducción no está disponible y la CPU sigue siempre en el intérprete.
+ *
+ * @author agent
+ */
+final class BlockTranslator {
+
+    private static final int HOT_THRESHOLD = 256;
+    private static final int MIN_INSTRUCTIONS = 2;
+    private static final int MAX_INSTRUCTIONS = 32;
+    private static final int MAX_MISSES = 8;
+    private static final int PAGE_SIZE = 0x2000;
+    private static final int PAGE_MASK = PAGE_SIZE - 1;
+
+    private static final String Z80_CLASS = "z80core/Z80";
+    private static final String MEMIO_CLASS = "z80core/MemIoOps";
+    private static final String CLOCK_CLASS = "machine/Clock";
+
+    // Variables locales del método execute generado
+    private static final int LOCAL_CPU = 1;
+    private static final int LOCAL_LIMIT = 2;
+    private static final int LOCAL_BUS = 3;
+    private static final int LOCAL_CLOCK = 4;
+    private static final int LOCAL_OPCODE = 5;
+
+    private static final MethodHandles.Lookup lookup = MethodHandles.lookup();
+    private static final Method defineHiddenClass;
+    private static final Object noClassOptions;
+
+    static {
+        Method method = null;
+        Object options = null;
+        try {
+            Class<?> classOption =
+                Class.forName("java.lang.invoke.MethodHandles$Lookup$ClassOption");
+            options = Array.newInstance(classOption, 0);
+            method = MethodHandles.Lookup.class.getMethod("defineHiddenClass",
+                byte[].class, boolean.class, options.getClass());
+        } catch (ReflectiveOperationException ex) {
+            // Java anterior a la 15, no hay traducción
+        }
+        defineHiddenClass = method;
+        noClassOptions = options;
+    }
+
+    private final Z80 cpu;
+    private final MemIoOps memory;
+    // Páginas de código vistas en cada tramo de 8K, por página física
+    private final PageMap pagesAt[] = new PageMap[8];
+    // Página física y bloques del tramo en la última consulta. Un bus sin
+    // RAM propia puede devolver null como página, así que se empieza por
+    // una que no puede coincidir con ninguna.
+    private static final Object NO_PAGE = new Object();
+    private final Object pageKeyAt[] = new Object[8];
+    private final CodePage codePageAt[] = new CodePage[8];
+
+    /*
+     * Bloques de una página física de 8K vista desde un tramo concreto. Una
+     * misma página puede verse en dos tramos (el banco 5 en 0x4000 y 0xC000,
+     * por ejemplo), y sus bloques no se pueden compartir porque llevan las
+     * direcciones lógicas incrustadas.
+     */
+    private static final class CodePage {
+        final TranslatedBlock blockAt[] = new TranslatedBlock[PAGE_SIZE];
+        final int hitsAt[] = new int[PAGE_SIZE];
+        final byte missesAt[] = new byte[PAGE_SIZE];
+    }
+
+    // Las páginas de un tramo, en una clase para poder tener un array de ellas
+    private static final class PageMap {
+        final IdentityHashMap<Object, CodePage> pages = new IdentityHashMap<>();
+    }
+
+    static boolean isAvailable() {
+        return defineHiddenClass != null;
+    }
+
+    BlockTranslator(Z80 z80) {
+        cpu = z80;
+        memory = z80.MemIoImpl;
+        for (int slot = 0; slot < pagesAt.length; slot++) {
+            pagesAt[slot] = new PageMap();
+            pageKeyAt[slot] = NO_PAGE;
+        }
+    }
+
+    /*
+     * Devuelve el bloque traducido que empieza en address, o null si aún
+     * no está caliente o no se puede traducir.
+     */
+    TranslatedBlock getBlock(int address) {
+        int slot = address >>> 13;
+        Object pageKey = memory.getCodePage(address);
+
+        // Cambio de paginación: los bloques del banco anterior se guardan
+        // para cuando vuelva a estar visible.
+        if (pageKey != pageKeyAt[slot]) {
+            pageKeyAt[slot] = pageKey;
+            codePageAt[slot] = pagesAt[slot].pages.computeIfAbsent(pageKey, key -> new CodePage());
+        }
+
+        CodePage page = codePageAt[slot];
+        int offset = address & PAGE_MASK;
+        TranslatedBlock block = page.blockAt[offset];
+
+        if (block == null && ++page.hitsAt[offset] == HOT_THRESHOLD) {
+            block = page.blockAt[offset] = translate(address);
+        }
+
+        return block;
+    }
+
+    /*
+     * El bloque que empieza en address ha encontrado un opcode distinto al
+     * traducido. Se descarta y, si vuelve a estar caliente, se traduce de
+     * nuevo, cada vez más tarde. Tras MAX_MISSES fallos se deja en paz.
+     * El bloque es siempre de la página consultada en el último getBlock.
+     */
+    void discard(int address) {
+        CodePage page = codePageAt[address >>> 13];
+        int offset = address & PAGE_MASK;
+
+        page.blockAt[offset] = null;
+
+        if (page.missesAt[offset] < MAX_MISSES) {
+            page.hitsAt[offset] = -(HOT_THRESHOLD << ++page.missesAt[offset]);
+        } else {
+            page.hitsAt[offset] = Integer.MIN_VALUE;
+        }
+    }
+
+    void flush() {
+        for (int slot = 0; slot < pagesAt.length; slot++) {
+            pagesAt[slot].pages.clear();
+            pageKeyAt[slot] = NO_PAGE;
+            codePageAt[slot] = null;
+        }
+    }
+
+    private TranslatedBlock translate(int start) {
+        ClassAssembler asm = new ClassAssembler();
+        ClassAssembler.Label exit = asm.newLabel();
+        ClassAssembler.Label miss = asm.newLabel();
+
+        // MemIoOps y Clock en variables locales
+        asm.aload(LOCAL_CPU);
+        asm.getfield(Z80_CLASS, "MemIoImpl", "L" + MEMIO_CLASS + ";");
+        asm.astore(LOCAL_BUS);
+        asm.aload(LOCAL_CPU);
+        asm.getfield(Z80_CLASS, "clock", "L" + CLOCK_CLASS + ";");
+        asm.astore(LOCAL_CLOCK);
+
+        int address = start;
+        int count = 0;
+        boolean endOfBlock = false;
+        while (!endOfBlock && count < MAX_INSTRUCTIONS) {
+            // El bloque pertenece a una sola página física
+            if ((address >>> 13) != (start >>> 13)) {
+                break;
+            }
+
+            int opCode = memory.readByte(address);
+            int length = instructionLength(memory, address);
+
+            if (length == 0 || hasBreakpoint(address, length)) {
+                break;
+            }
+
+            // Al final de la instrucción anterior es cuando el intérprete
+            // comprueba el límite de t-estados, NMI e INT.
+            if (count > 0) {
+                emitEndChecks(asm, exit);
+            }
+
+            emitFetch(asm, address, opCode, miss);
+
+            switch (opCode) {
+                case 0xDD:
+                case 0xFD:
+                case 0xED: {
+                    int next = (address + 1) & 0xffff;
+                    int opCode2 = memory.readByte(next);
+                    emitPrefix(asm, opCode, exit);
+                    emitFetch(asm, next, opCode2, miss);
+                    emitPrefixed(asm, opCode, opCode2);
+                    endOfBlock = opCode == 0xED ? isEDJump(opCode2)
+                        : opCode2 == 0xE9 || isJump(opCode2);
+                    break;
+                }
+                default:
+                    emitOpcode(asm, opCode);
+                    endOfBlock = isJump(opCode);
+            }
+
+            address = (address + length) & 0xffff;
+            count++;
+        }
+
+        if (count < MIN_INSTRUCTIONS) {
+            return null;
+        }
+
+        asm.mark(exit);
+        asm.op(ClassAssembler.RETURN);
+
+        // Opcode distinto al traducido. PC apunta ya a la dirección del
+        // fetch, así que basta una salida común para todo el bloque.
+        asm.mark(miss);
+        asm.aload(LOCAL_CPU);
+        asm.iconst(start);
+        asm.iload(LOCAL_OPCODE);
+        asm.invokevirtual(Z80_CLASS, "translationMiss", "(II)V");
+        asm.op(ClassAssembler.RETURN);
+
+        try {
+            MethodHandles.Lookup blockLookup = (MethodHandles.Lookup) defineHiddenClass
+                .invoke(lookup, asm.toByteArray(), true, noClassOptions);
+            return (TranslatedBlock) blockLookup.findConstructor(blockLookup.lookupClass(),
+                MethodType.methodType(void.class)).invoke();
+        } catch (Throwable ex) {
+            // Un bloque que no se puede cargar se queda en el intérprete
+            return null;
+        }
+    }
+
+    private boolean hasBreakpoint(int address, int length) {
+        for (int idx = 0; idx < length; idx++) {
+            if (cpu.isBreakpoint(address + idx)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /*
+     * M1: fetchOpcode con la dirección del bloque, comparación con el opcode
+     * traducido, R++, PC++ y flagQ = false, igual que el bucle de execute.
+     */
+    private static void emitFetch(ClassAssembler asm, int address, int opCode,
+        ClassAssembler.Label miss) {
+        asm.aload(LOCAL_BUS);
+        asm.iconst(address);
+        asm.invokevirtual(MEMIO_CLASS, "fetchOpcode", "(I)I");
+        asm.istore(LOCAL_OPCODE);
+        asm.iload(LOCAL_OPCODE);
+        asm.iconst(opCode);
+        asm.branch(ClassAssembler.IF_ICMPNE, miss);
+
+        asm.aload(LOCAL_CPU);
+        asm.op(ClassAssembler.DUP);
+        asm.getfield(Z80_CLASS, "regR", "I");
+        asm.op(ClassAssembler.ICONST_1);
+        asm.op(ClassAssembler.IADD);
+        asm.putfield(Z80_CLASS, "regR", "I");
+
+        asm.aload(LOCAL_CPU);
+        asm.iconst((address + 1) & 0xffff);
+        asm.putfield(Z80_CLASS, "regPC", "I");
+
+        asm.aload(LOCAL_CPU);
+        asm.op(ClassAssembler.ICONST_0);
+        asm.putfield(Z80_CLASS, "flagQ", "Z");
+    }
+
+    /*
+     * Un prefijo DD/FD/ED no termina la instrucción: no hay NMI ni INT hasta
+     * el siguiente opcode, pero el intérprete sí puede parar entre ambos si
+     * se llega al límite de t-estados.
+     */
+    private static void emitPrefix(ClassAssembler asm, int prefix, ClassAssembler.Label exit) {
+        asm.aload(LOCAL_CPU);
+        asm.iconst(prefix);
+        asm.putfield(Z80_CLASS, "prefixOpcode", "I");
+
+        asm.aload(LOCAL_CLOCK);
+        asm.invokevirtual(CLOCK_CLASS, "getTstates", "()I");
+        asm.iload(LOCAL_LIMIT);
+        asm.branch(ClassAssembler.IF_ICMPGE, exit);
+    }
+
+    private static void emitOpcode(ClassAssembler asm, int opCode) {
+        asm.aload(LOCAL_CPU);
+        asm.iconst(opCode);
+        asm.invokevirtual(Z80_CLASS, "decodeOpcode", "(I)V");
+        emitLastFlagQ(asm);
+    }
+
+    private static void emitPrefixed(ClassAssembler asm, int prefix, int opCode) {
+        if (prefix == 0xED) {
+            asm.aload(LOCAL_CPU);
+            asm.iconst(opCode);
+            asm.invokevirtual(Z80_CLASS, "decodeED", "(I)V");
+        } else {
+            String register = prefix == 0xDD ? "regIX" : "regIY";
+            asm.aload(LOCAL_CPU);
+            asm.aload(LOCAL_CPU);
+            asm.iconst(opCode);
+            asm.aload(LOCAL_CPU);
+            asm.getfield(Z80_CLASS, register, "I");
+            asm.invokevirtual(Z80_CLASS, "decodeDDFD", "(II)I");
+            asm.putfield(Z80_CLASS, register, "I");
+        }
+        emitLastFlagQ(asm);
+    }
+
+    private static void emitLastFlagQ(ClassAssembler asm) {
+        asm.aload(LOCAL_CPU);
+        asm.aload(LOCAL_CPU);
+        asm.getfield(Z80_CLASS, "flagQ", "Z");
+        asm.putfield(Z80_CLASS, "lastFlagQ", "Z");
+    }
+
+    /*
+     * Lo que el intérprete comprueba al final de cada instrucción. Dentro
+     * de un bloque no hay EI pendiente ni execDone, así que basta con el
+     * límite de t-estados, NMI y, con IFF1 activo, la INT.
+     */
+    private static void emitEndChecks(ClassAssembler asm, ClassAssembler.Label exit) {
+        ClassAssembler.Label next = asm.newLabel();
+
+        asm.aload(LOCAL_CLOCK);
+        asm.invokevirtual(CLOCK_CLASS, "getTstates", "()I");
+        asm.iload(LOCAL_LIMIT);
+        asm.branch(ClassAssembler.IF_ICMPGE, exit);
+
+        asm.aload(LOCAL_CPU);
+        asm.getfield(Z80_CLASS, "activeNMI", "Z");
+        asm.branch(ClassAssembler.IFNE, exit);
+
+        asm.aload(LOCAL_CPU);
+        asm.getfield(Z80_CLASS, "ffIFF1", "Z");
+        asm.branch(ClassAssembler.IFEQ, next);
+        asm.aload(LOCAL_BUS);
+        asm.invokevirtual(MEMIO_CLASS, "isActiveINT", "()Z");
+        asm.branch(ClassAssembler.IFNE, exit);
+        asm.mark(next);
+    }
+
+    /*
+     * Instrucciones tras las que el bloque termina: las que cambian PC
+     * (saltos, llamadas, retornos, RST) y EI, que retrasa la INT.
+     */
+    private static boolean isJump(int opCode) {
+        switch (opCode) {
+            case 0x10: // DJNZ
+            case 0x18: // JR e
+            case 0x20: // JR NZ,e
+            case 0x28: // JR Z,e
+            case 0x30: // JR NC,e
+            case 0x38: // JR C,e
+            case 0xC3: // JP nn
+            case 0xC9: // RET
+            case 0xCD: // CALL nn
+            case 0xE9: // JP (HL)
+            case 0xFB: // EI
+                return true;
+        }
+        // RET cc, JP cc, CALL cc y RST
+        int low = opCode & 0xC7;
+        return opCode >= 0xC0 && (low == 0xC0 || low == 0xC2 || low == 0xC4 || low == 0xC7);
+    }
+
+    // RETN/RETI y las instrucciones de bloque que repiten rebobinando PC
+    private static boolean isEDJump(int opCode) {
+        if (opCode >= 0x40 && opCode < 0x80) {
+            return (opCode & 0x07) == 0x05;
+        }
+        return opCode >= 0xB0 && opCode < 0xC0;
+    }
+
+    /*
+     * Longitud de la instrucción que empieza en address, o 0 si no se debe
+     * traducir: HALT, y secuencias de prefijos que el intérprete trata de
+     * uno en uno (DD DD, DD ED, ED FD...).
+     */
+    static int instructionLength(MemIoOps memory, int address) {
+        int opCode = memory.readByte(address);
+
+        switch (opCode) {
+            case 0x76: // HALT
+                return 0;
+            case 0xCB:
+                return 2;
+            case 0xED: {
+                int opCode2 = memory.readByte((address + 1) & 0xffff);
+                if (opCode2 == 0xDD || opCode2 == 0xED || opCode2 == 0xFD) {
+                    return 0;
+                }
+                // LD (nn),rr y LD rr,(nn)
+                return (opCode2 & 0xC7) == 0x43 ? 4 : 2;
+            }
+            case 0xDD:
+            case 0xFD: {
+                int opCode2 = memory.readByte((address + 1) & 0xffff);
+                switch (opCode2) {
+                    case 0x76:
+                    case 0xDD:
+                    case 0xED:
+                    case 0xFD:
+                        return 0;
+                    case 0xCB:
+                        return 4;
+                }
+                return 1 + unprefixedLength(opCode2) + (usesIndexedHL(opCode2) ? 1 : 0);
+            }
+        }
+        return unprefixedLength(opCode);
+    }
+
+    private static int unprefixedLength(int opCode) {
+        if (opCode < 0x40) {
+            switch (opCode & 0x0F) {
+                case 0x01: // LD rr,nn
+                    return 3;
+                case 0x02:
+                case 0x0A:
+                    // LD (nn),HL, LD (nn),A, LD HL,(nn), LD A,(nn)
+                    return opCode >= 0x20 ? 3 : 1;
+                case 0x06: // LD r,n
+                case 0x0E:
+                    return 2;
+                case 0x00: // DJNZ, JR
+                case 0x08:
+                    return opCode >= 0x10 ? 2 : 1;
+            }
+            return 1;
+        }
+
+        if (opCode < 0xC0) {
+            return 1;
+        }
+
+        switch (opCode & 0x07) {
+            case 0x02: // JP cc,nn
+            case 0x04: // CALL cc,nn
+                return 3;
+            case 0x06: // ALU A,n
+                return 2;
+            case 0x03:
+                switch (opCode) {
+                    case 0xC3: // JP nn
+                        return 3;
+                    case 0xD3: // OUT (n),A
+                    case 0xDB: // IN A,(n)
+                        return 2;
+                }
+                return 1;
+            case 0x05:
+                return opCode == 0xCD ? 3 : 1;
+        }
+        return 1;
+    }
+
+    // Con prefijo DD/FD, las instrucciones con (HL) llevan desplazamiento
+    private static boolean usesIndexedHL(int opCode) {
+        switch (opCode) {
+            case 0x34: // INC (HL)
+            case 0x35: // DEC (HL)
+            case 0x36: // LD (HL),n
+                return true;
+        }
+        if (opCode >= 0x40 && opCode < 0xC0 && opCode != 0x76) {
+            return (opCode & 0x07) == 0x06 || (opCode & 0xF8) == 0x70;
+        }
+        return false;
+    }
+
+    /*
+     * Ensamblador mínimo de ficheros .class con una clase final que
+     * implementa TranslatedBlock. Se genera la versión 49 del formato, que
+     * no necesita StackMapTable.
+     */
+    static final class ClassAssembler {
+        static final int ICONST_0 = 0x03;
+        static final int ICONST_1 = 0x04;
+        static final int IADD = 0x60;
+        static final int DUP = 0x59;
+        static final int IFEQ = 0x99;
+        static final int IFNE = 0x9A;
+        static final int IF_ICMPNE = 0xA0;
+        static final int IF_ICMPGE = 0xA2;
+        static final int RETURN = 0xB1;
+
+        static final class Label {
+            private int position = -1;
+            private int patches[] = new int[4];
+            private int patchCount;
+        }
+
+        private final ArrayList<Label> labels = new ArrayList<>();
+        private final ByteArrayOutputStream pool = new ByteArrayOutputStream();
+        private final DataOutputStream poolOut = new DataOutputStream(pool);
+        private final HashMap<String, Integer> poolIndex = new HashMap<>();
+        private int poolCount = 1;
+        private byte code[] = new byte[1024];
+        private int codeLength;
+
+        Label newLabel() {
+            Label label = new Label();
+            labels.add(label);
+            return label;
+        }
+
+        void op(int opCode) {
+            u1(opCode);
+        }
+
+        void aload(int local) {
+            u1(0x19);
+            u1(local);
+        }
+
+        void astore(int local) {
+            u1(0x3A);
+            u1(local);
+        }
+
+        void iload(int local) {
+            u1(0x15);
+            u1(local);
+        }
+
+        void istore(int local) {
+            u1(0x36);
+            u1(local);
+        }
+
+        void iconst(int value) {
+            if (value >= -1 && value <= 5) {
+                u1(ICONST_0 + value);
+            } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+                u1(0x10);   // bipush
+                u1(value);
+            } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+                u1(0x11);   // sipush
+                u2(value);
+            } else {
+                u1(0x13);   // ldc_w
+                u2(constant(3, "I" + value, value));
+            }
+        }
+
+        void getfield(String owner, String name, String type) {
+            u1(0xB4);
+            u2(member(9, owner, name, type));
+        }
+
+        void putfield(String owner, String name, String type) {
+            u1(0xB5);
+            u2(member(9, owner, name, type));
+        }
+
+        void invokevirtual(String owner, String name, String type) {
+            u1(0xB6);
+            u2(member(10, owner, name, type));
+        }
+
+        void branch(int opCode, Label target) {
+            if (target.patchCount == target.patches.length) {
+                target.patches = Arrays.copyOf(target.patches, target.patchCount * 2);
+            }
+            target.patches[target.patchCount++] = codeLength;
+            u1(opCode);
+            u2(0);
+        }
+
+        void mark(Label label) {
+            label.position = codeLength;
+        }
+
+        byte[] toByteArray() {
+            int thisClass = classRef("z80core/TranslatedBlock$Code");
+            int superClass = classRef("java/lang/Object");
+            int blockInterface = classRef("z80core/TranslatedBlock");
+            int objectInit = member(10, "java/lang/Object", "<init>", "()V");
+            int initName = utf8("<init>");
+            int initType = utf8("()V");
+            int executeName = utf8("execute");
+            int executeType = utf8("(Lz80core/Z80;I)V");
+            int codeName = utf8("Code");
+
+            resolveLabels();
+
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(pool.size() + codeLength + 128);
+            DataOutputStream out = new DataOutputStream(bytes);
+            try {
+                out.writeInt(0xCAFEBABE);
+                out.writeShort(0);
+                out.writeShort(49);
+                out.writeShort(poolCount);
+                pool.writeTo(out);
+                out.writeShort(0x0031);     // public final super
+                out.writeShort(thisClass);
+                out.writeShort(superClass);
+                out.writeShort(1);
+                out.writeShort(blockInterface);
+                out.writeShort(0);          // sin campos
+                out.writeShort(2);
+
+                // public <init>() { super(); }
+                out.writeShort(0x0001);
+                out.writeShort(initName);
+                out.writeShort(initType);
+                out.writeShort(1);
+                out.writeShort(codeName);
+                out.writeInt(12 + 5);
+                out.writeShort(1);
+                out.writeShort(1);
+                out.writeInt(5);
+                out.writeByte(0x2A);        // aload_0
+                out.writeByte(0xB7);        // invokespecial
+                out.writeShort(objectInit);
+                out.writeByte(RETURN);
+                out.writeShort(0);
+                out.writeShort(0);
+
+                // public void execute(Z80 cpu, int statesLimit)
+                out.writeShort(0x0001);
+                out.writeShort(executeName);
+                out.writeShort(executeType);
+                out.writeShort(1);
+                out.writeShort(codeName);
+                out.writeInt(12 + codeLength);
+                out.writeShort(8);          // max_stack
+                out.writeShort(LOCAL_OPCODE + 1);
+                out.writeInt(codeLength);
+                out.write(code, 0, codeLength);
+                out.writeShort(0);
+                out.writeShort(0);
+
+                out.writeShort(0);          // sin atributos de clase
+            } catch (IOException ex) {
+                // No pasa con un ByteArrayOutputStream
+                throw new IllegalStateException(ex);
+            }
+            return bytes.toByteArray();
+        }
+
+        private void resolveLabels() {
+            for (Label label : labels) {
+                for (int idx = 0; idx < label.patchCount; idx++) {
+                    int at = label.patches[idx];
+                    int offset = label.position - at;
+                    code[at + 1] = (byte) (offset >> 8);
+                    code[at + 2] = (byte) offset;
+                }
+            }
+        }
+
+        private void u1(int value) {
+            if (codeLength == code.length) {
+                code = Arrays.copyOf(code, code.length * 2);
+            }
+            code[codeLength++] = (byte) value;
+        }
+
+        private void u2(int value) {
+            u1(value >> 8);
+            u1(value);
+        }
+
+        private int utf8(String value) {
+            return constant(1, "U" + value, value);
+        }
+
+        private int classRef(String name) {
+            return constant(7, "C" + name, utf8(name));
+        }
+
+        private int member(int tag, String owner, String name, String type) {
+            String key = tag + owner + "." + name + type;
+            Integer index = poolIndex.get(key);
+            if (index != null) {
+                return index;
+            }
+            int ownerIndex = classRef(owner);
+            int nameAndType = constant(12, "N" + name + type, utf8(name), utf8(type));
+            return add(key, tag, ownerIndex, nameAndType);
+        }
+
+        private int constant(int tag, String key, Object value) {
+            Integer index = poolIndex.get(key);
+            if (index != null) {
+                return index;
+            }
+            try {
+                if (tag == 1) {
+                    poolOut.writeByte(1);
+                    poolOut.writeUTF((String) value);
+                } else if (tag == 3) {
+                    poolOut.writeByte(3);
+                    poolOut.writeInt((Integer) value);
+                } else {
+                    poolOut.writeByte(tag);
+                    poolOut.writeShort((Integer) value);
+                }
+            } catch (IOException ex) {
+                throw new IllegalStateException(ex);
+            }
+            poolIndex.put(key, poolCount);
+            return poolCount++;
+        }
+
+        private int constant(int tag, String key, int first, int second) {
+            Integer index = poolIndex.get(key);
+            if (index != null) {
+                return index;
+            }
+            return add(key, tag, first, second);
+        }
+
+        private int add(String key, int tag, int first, int second) {
+            try {
+                poolOut.writeByte(tag);
+                poolOut.writeShort(first);
+                poolOut.writeShort(second);
+            } catch (IOException ex) {
+                throw new IllegalStateException(ex);
+            }
+            poolIndex.put(key, poolCount);
+            return poolCount++;
+        }
+    }
+}
@@ -5,6 +5,8 @@
 
 package z80core;
 
+import machine.Clock;
+
 /**
  *
  * @author jsanchez
@@ -12,7 +14,11 @@ package z80core;
 public class MemIoOps {
     private byte z80Ram[] = null;
     private byte z80Ports[] = null;
-    private long tstates = 0;
+    // El bucle de Z80.execute consulta el Clock, así que el bus plano
+    // tiene que hacerlo avanzar para que la CPU pueda ejecutarse sobre él.
+    // El reloj es del bus: la CPU y los periféricos de la máquina lo
+    // obtienen de aquí con getClock.
+    protected final Clock clock = new Clock();
 
     public MemIoOps() {
         z80Ram = new byte[0x10000];
@@ -40,56 +46,93 @@ public class MemIoOps {
     }
 
     public void setPorts(byte ports[]) {
-        z80Ram = ports;
+        z80Ports = ports;
     }
 
     public int fetchOpcode(int address) {
         // 3 clocks to fetch opcode from RAM and 1 execution clock
-        tstates += 4;
+        clock.addTstates(4);
+        return z80Ram[address] & 0xff;
+    }
+
+    // Lectura sin t-estados ni contención, para quien sólo quiere mirar
+    public int readByte(int address) {
         return z80Ram[address] & 0xff;
     }
 
+    /*
+     * Página física de memoria que se ve en address. Sólo importa su
+     * identidad: con paginación, cada banco debe ser un objeto distinto.
+     */
+    public Object getCodePage(int address) {
+        return z80Ram;
+    }
+
     public int peek8(int address) {
-        tstates += 3; // 3 clocks for read byte from RAM
+        clock.addTstates(3); // 3 clocks for read byte from RAM
         return z80Ram[address] & 0xff;
     }
 
     public void poke8(int address, int value) {
-        tstates += 3; // 3 clocks for write byte to RAM
+        clock.addTstates(3); // 3 clocks for write byte to RAM
         z80Ram[address] = (byte)value;
     }
 
     public int peek16(int address) {
         int lsb = peek8(address);
-        int msb = peek8(address + 1);
+        int msb = peek8((address + 1) & 0xffff);
         return (msb << 8) | lsb;
     }
 
     public void poke16(int address, int word) {
         poke8(address, word);
-        poke8(address + 1, word >>> 8);
+        poke8((address + 1) & 0xffff, word >>> 8);
     }
 
     public int inPort(int port) {
-        tstates += 4; // 4 clocks for read byte from bus
+        clock.addTstates(4); // 4 clocks for read byte from bus
         return z80Ports[port] & 0xff;
     }
 
     public void outPort(int port, int value) {
-        tstates += 4; // 4 clocks for write byte to bus
+        clock.addTstates(4); // 4 clocks for write byte to bus
         z80Ports[port] = (byte)value;
     }
 
+    /*
+     * Ejecuta de una vez hasta count iteraciones completas de LDIR (increment)
+     * o LDDR que se repiten, con la instrucción en pc y copiando desde from
+     * hacia to. Cada una son los dos M1 del ED xx, la lectura, la escritura y
+     * los 2 + 5 t-estados extra; el bus añade su tiempo y devuelve cuántas ha
+     * hecho. No debe llegar a statesLimit, que ya tiene en cuenta el
+     * siguiente evento del Clock, ni pasar por un cambio de la línea INT, ni
+     * escribir sobre la propia instrucción. Por omisión no hace ninguna y la CPU las ejecuta una a una.
+     */
+    public int copyBlock(int pc, int from, int to, int count, boolean increment,
+        int statesLimit) {
+        return 0;
+    }
+
+    /*
+     * Ejecuta de una vez los ciclos M1 que hace la CPU parada en el HALT de
+     * address, hasta llegar a statesLimit, y devuelve cuántos ha hecho. Igual
+     * que copyBlock, no debe pasar por un cambio de la línea INT. Por omisión
+     * no hace ninguno.
+     */
+    public int haltCycles(int address, int statesLimit) {
+        return 0;
+    }
+
     public void addressOnBus(int address, int tstates) {
         // Additional clocks to be added on some instructions
         // Not to be changed, really.
-        this.tstates += tstates;
+        clock.addTstates(tstates);
     }
 
     public void interruptHandlingTime(int tstates) {
         // Additional clocks to be added on INT & NMI
         // Not to be changed, really.
-        this.tstates += tstates;
+        clock.addTstates(tstates);
     }
 
     public boolean isActiveINT() {
@@ -97,10 +140,14 @@ public class MemIoOps {
     }
 
     public long getTstates() {
-        return tstates;
+        return clock.getTstates();
+    }
+
+    public Clock getClock() {
+        return clock;
     }
 
     public void reset() {
-        tstates = 0;
+        clock.reset();
     }
 }
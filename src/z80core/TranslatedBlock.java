@@ -0,0 +1,18 @@
+/*
+ * Bloque básico de código Z80 traducido a bytecode por BlockTranslator.
+ */
+package z80core;
+
+/**
+ *
+ * @author agent
+ */
+interface TranslatedBlock {
+    /*
+     * Ejecuta el bloque desde su primera instrucción. Devuelve el control al
+     * terminar el bloque, al llegar a statesLimit, al activarse NMI/INT o al
+     * encontrar un opcode distinto del traducido (código automodificado o
+     * cambio de paginación).
+     */
+    void execute(Z80 cpu, int statesLimit);
+}
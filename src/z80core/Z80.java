@@ -150,6 +150,39 @@
  *          29/01/2018 CB es el único prefijo de instrucción cuyo byte siguiente produce SIEMPRE un
  *          código de instrucción válido, de modo que no merece la pena dividirlo en dos y es mejor
  *          que se ejecute como una unidad indivisible.
+ *
+ *          17/10/2026 decodeOpcode rondaba los 7400 bytecodes, a un paso del límite de
+ *          8000 a partir del cual el JIT deja el método en el intérprete, y decodeCB no
+ *          andaba lejos. Se dividen ambos por rangos (0x00-0x7F y 0x80-0xFF), igual que
+ *          DDFDCB, y ahora ningún método de decodificación supera los 5500 bytecodes.
+ *
+ *          17/10/2026 Traducción opcional de los bloques básicos calientes a bytecode
+ *          (BlockTranslator). Cada bloque comprueba en el fetch que el opcode sigue siendo
+ *          el traducido, de modo que el código automodificado y los cambios de paginación
+ *          no necesitan invalidación explícita. Desactivada por omisión.
+ *
+ *          17/10/2026 Los bloques traducidos se guardan por página física de 8K, así que
+ *          sobreviven a los cambios de paginación de los 128K, del Interface I o del
+ *          Multiface en lugar de descartarse a cada cambio de banco.
+ *
+ *          17/10/2026 Las instrucciones de bloque repetidas (LDIR, CPIR, INIR, OTIR...)
+ *          iteran dentro de decodeED mientras no haya nada que atender al final de la
+ *          instrucción, en vez de retroceder el PC y volver al bucle principal. LDIR y
+ *          LDDR, además, piden al bus que copie de una vez las iteraciones que caen en
+ *          memoria sin contención (MemIoOps.copyBlock).
+ *
+ *          17/10/2026 Con la CPU en HALT, el bus adelanta de una vez todos los M1 hasta
+ *          el límite de execute o el siguiente timeout (MemIoOps.haltCycles), con su
+ *          contención, y la CPU suma al R los ciclos que le devuelve.
+ *
+ *          17/10/2026 El Clock deja de ser un singleton: cada bus (MemIoOps) tiene el
+ *          suyo y la CPU lo toma de él, así que puede haber varias máquinas
+ *          ejecutándose a la vez en la misma JVM.
+ *
+ *          17/10/2026 Los timeouts del Clock pasan a ser eventos de una cola ordenada
+ *          por t-estado. addTstates sólo suma, y execute compara una vez por
+ *          instrucción con el deadline del Clock (lo que antes llegue del límite o del
+ *          siguiente evento) y atiende allí los eventos vencidos.
  */
 package z80core;
 
@@ -159,12 +192,13 @@ import snapshots.Z80State;
 
 public class Z80 {
 
-    private final Clock clock;
-    private MemIoOps MemIoImpl;
+    // Sin private: los bloques traducidos (BlockTranslator) acceden directamente
+    Clock clock;
+    MemIoOps MemIoImpl;
     private NotifyOps NotifyImpl;
     // Se está ejecutando una instrucción DDxx, EDxx o FDxx 
     // Solo puede (debería) contener uno de 4 valores [0x00, 0xDD, 0xED, 0xFD]
-    private int prefixOpcode = 0x00;
+    int prefixOpcode = 0x00;
     // Subsistema de notificaciones
     private boolean execDone = false;
     // Posiciones de los flags
@@ -199,7 +233,7 @@ public class Z80 {
      *
      * Thanks to Patrik Rak for his tests and investigations.
      */
-    private boolean flagQ, lastFlagQ;
+    boolean flagQ, lastFlagQ;
     // Acumulador alternativo y flags -- 8 bits
     private int regAx;
     private int regFx;
@@ -207,27 +241,30 @@ public class Z80 {
     private int regBx, regCx, regDx, regEx, regHx, regLx;
     // Registros de propósito específico
     // *PC -- Program Counter -- 16 bits*
-    private int regPC;
+    int regPC;
     // *IX -- Registro de índice -- 16 bits*
-    private int regIX;
+    int regIX;
     // *IY -- Registro de índice -- 16 bits*
-    private int regIY;
+    int regIY;
     // *SP -- Stack Pointer -- 16 bits*
     private int regSP;
     // *I -- Vector de interrupción -- 8 bits*
     private int regI;
     // *R -- Refresco de memoria -- 7 bits*
-    private int regR;
+    int regR;
     // *R7 -- Refresco de memoria -- 1 bit* (bit superior de R)
     private boolean regRbit7;
+    // regR no se recorta a 7 bits hasta que se lee, así que cuenta los
+    // ciclos M1. Lo que se pierde cuando se le da valor se suma aquí.
+    private int m1Bias;
     //Flip-flops de interrupción
-    private boolean ffIFF1 = false;
+    boolean ffIFF1 = false;
     private boolean ffIFF2 = false;
     // EI solo habilita las interrupciones DESPUES de ejecutar la
     // siguiente instrucción (excepto si la siguiente instrucción es un EI...)
     private boolean pendingEI = false;
     // Estado de la línea NMI
-    private boolean activeNMI = false;
+    boolean activeNMI = false;
     // Si está activa la línea INT
     // En el 48 y los +2a/+3 la línea INT se activa durante 32 ciclos de reloj
     // En el 128 y +2, se activa 36 ciclos de reloj
@@ -315,9 +352,12 @@ public class Z80 {
     // ejecutar la instrucción que está en esa direción.
     private final boolean breakpointAt[] = new boolean[65536];
 
+    // Traducción de bloques calientes a bytecode, null si no está activa
+    private BlockTranslator translator;
+
     // Constructor de la clase
     public Z80(MemIoOps memory, NotifyOps notify) {
-        this.clock = Clock.getInstance();
+        this.clock = memory.getClock();
         MemIoImpl = memory;
         NotifyImpl = notify;
         execDone = false;
@@ -327,6 +367,12 @@ public class Z80 {
 
     public void setMemIoHandler(MemIoOps memIo) {
         MemIoImpl = memIo;
+        clock = memIo.getClock();
+
+        // Las páginas de código son las del bus anterior
+        if (translator != null) {
+            translator = new BlockTranslator(this);
+        }
     }
 
     public void setNotifyHandler(NotifyOps notify) {
@@ -664,10 +710,20 @@ public class Z80 {
     }
 
     public final void setRegR(int value) {
+        m1Bias += regR - (value & 0x7f);
         regR = value & 0x7f;
         regRbit7 = (value > 0x7f);
     }
 
+    /*
+     * Ciclos M1 ejecutados: uno por instrucción, más uno por cada prefijo y
+     * uno cada 4 estados mientras está en HALT. El contador da la vuelta,
+     * sólo sirve la diferencia entre dos lecturas.
+     */
+    public final int getM1Count() {
+        return regR + m1Bias;
+    }
+
     public final int getPairIR() {
         if (regRbit7) {
             return (regI << 8) | ((regR & 0x7f) | SIGN_MASK);
@@ -857,7 +913,11 @@ public class Z80 {
     }
 
     public final Z80State getZ80State() {
-        Z80State state = new Z80State();
+        return getZ80State(new Z80State());
+    }
+
+    // Como getZ80State(), pero rellenando un estado ya creado
+    public final Z80State getZ80State(Z80State state) {
         state.setRegA(regA);
         state.setRegF(getFlags());
         state.setRegB(regB);
@@ -889,6 +949,7 @@ public class Z80 {
         state.setPendingEI(pendingEI);
         state.setNMI(activeNMI);
         state.setFlagQ(lastFlagQ);
+        state.setPrefixOpcode(prefixOpcode);
         return state;
     }
 
@@ -925,6 +986,7 @@ public class Z80 {
         activeNMI = state.isNMI();
         flagQ = false;
         lastFlagQ = state.isFlagQ();
+        prefixOpcode = state.getPrefixOpcode();
     }
 
     // Reset
@@ -964,6 +1026,7 @@ public class Z80 {
         }
 
         regPC = 0;
+        m1Bias += regR;
         regI = regR = 0;
         regRbit7 = false;
         ffIFF1 = false;
@@ -1663,6 +1726,97 @@ public class Z80 {
         flagQ = true;
     }
 
+    /*
+     * LDIR, CPIR, INIR, OTIR y sus versiones decrecientes repiten la
+     * instrucción volviendo PC atrás. En lugar de pasar cada vez por el bucle
+     * de execute, la siguiente iteración se hace aquí mismo si allí no habría
+     * nada que atender: ni límite de t-estados, ni NMI, ni INT, ni EI
+     * pendiente, ni execDone, ni breakpoint, y la instrucción sigue siendo
+     * la misma (podría haberse sobreescrito a sí misma). Se hacen los dos M1
+     * del ED xx con su temporización y se devuelve true para que el llamador
+     * ejecute la iteración. Con false, todo sigue como antes en execute.
+     */
+    private boolean repeatIteration(int opCode) {
+        if (clock.getTstates() >= clock.getDeadline() || activeNMI || pendingEI || execDone
+            || (ffIFF1 && MemIoImpl.isActiveINT()) || breakpointAt[regPC]
+            || MemIoImpl.readByte(regPC) != 0xED
+            || MemIoImpl.readByte((regPC + 1) & 0xffff) != opCode) {
+            return false;
+        }
+
+        lastFlagQ = flagQ;
+
+        MemIoImpl.fetchOpcode(regPC);
+        regR++;
+        regPC = (regPC + 1) & 0xffff;
+
+        // El intérprete también puede parar entre el prefijo y el opcode.
+        // flagQ se deja como está porque un bloque traducido copia flagQ a
+        // lastFlagQ tras decodeED.
+        if (clock.getTstates() >= clock.getDeadline()) {
+            prefixOpcode = 0xED;
+            return false;
+        }
+
+        MemIoImpl.fetchOpcode(regPC);
+        regR++;
+        regPC = (regPC + 1) & 0xffff;
+        flagQ = false;
+        return true;
+    }
+
+    /*
+     * Iteraciones completas de LDIR/LDDR en un solo paso, cuando el bus sabe
+     * hacerlas (ver MemIoOps.copyBlock). Se llama con PC apuntando al ED, tras
+     * una iteración que se repite, y deja los registros y flags como los
+     * dejarían esas iteraciones. La última siempre la hace ldi/ldd. Si el bus
+     * no copia nada (contención, sobre todo) no merece la pena volver a
+     * intentarlo en cada iteración, y se devuelve false.
+     */
+    private boolean copyBlockBulk(int opCode, boolean increment) {
+        if (activeNMI || pendingEI || execDone
+            || (ffIFF1 && MemIoImpl.isActiveINT()) || breakpointAt[regPC]
+            || MemIoImpl.readByte(regPC) != 0xED
+            || MemIoImpl.readByte((regPC + 1) & 0xffff) != opCode) {
+            return false;
+        }
+
+        int regHL = getRegHL();
+        int regDE = getRegDE();
+        int count = MemIoImpl.copyBlock(regPC, regHL, regDE,
+            getRegBC() - 1, increment, clock.getDeadline());
+
+        if (count == 0) {
+            return false;
+        }
+
+        regR += 2 * count;
+        setRegBC(getRegBC() - count);
+
+        // El último byte leído del origen: el destino puede ser ROM
+        int last;
+        if (increment) {
+            last = (regHL + count - 1) & 0xffff;
+            setRegHL(regHL + count);
+            setRegDE(regDE + count);
+        } else {
+            last = (regHL - count + 1) & 0xffff;
+            setRegHL(regHL - count);
+            setRegDE(regDE - count);
+        }
+
+        // Los flags de la última iteración copiada, como en ldi/ldd
+        int work8 = MemIoImpl.readByte(last) + regA;
+        sz5h3pnFlags = (sz5h3pnFlags & FLAG_SZ_MASK) | (work8 & BIT3_MASK) | PARITY_MASK;
+
+        if ((work8 & ADDSUB_MASK) != 0) {
+            sz5h3pnFlags |= BIT5_MASK;
+        }
+
+        lastFlagQ = flagQ = true;
+        return true;
+    }
+
     // Pone a 1 el Flag Z si el bit b del registro
     // r es igual a 0
     /*
@@ -1761,6 +1915,11 @@ public class Z80 {
 
     public final void setBreakpoint(int address, boolean state) {
         breakpointAt[address & 0xffff] = state;
+
+        // Ningún bloque traducido puede contener un breakpoint
+        if (state && translator != null) {
+            translator.flush();
+        }
     }
 
     public void resetBreakpoints() {
@@ -1775,13 +1934,129 @@ public class Z80 {
         execDone = state;
     }
 
+    /*
+     * Activa la traducción de los bloques básicos más ejecutados a bytecode
+     * (ver BlockTranslator). Si la JVM no la permite, se queda desactivada.
+     */
+    public void setTranslationEnabled(boolean state) {
+        if (state && BlockTranslator.isAvailable()) {
+            if (translator == null) {
+                translator = new BlockTranslator(this);
+            }
+        } else {
+            translator = null;
+        }
+    }
+
+    public boolean isTranslationEnabled() {
+        return translator != null;
+    }
+
+    /*
+     * Un bloque traducido que empieza en blockAddress ha leído en el fetch un
+     * opcode distinto al traducido. PC apunta a ese opcode, de modo que aquí
+     * se termina la instrucción como lo haría el bucle de execute y se
+     * descarta el bloque.
+     */
+    void translationMiss(int blockAddress, int opCode) {
+        translator.discard(blockAddress);
+
+        regR++;
+
+        if (prefixOpcode == 0 && breakpointAt[regPC]) {
+            opCode = NotifyImpl.breakpoint(regPC, opCode);
+        }
+
+        regPC = (regPC + 1) & 0xffff;
+
+        flagQ = false;
+
+        switch (prefixOpcode) {
+            case 0x00:
+                decodeOpcode(opCode);
+                break;
+            case 0xDD:
+                regIX = decodeDDFD(opCode, regIX);
+                break;
+            case 0xED:
+                decodeED(opCode);
+                break;
+            case 0xFD:
+                regIY = decodeDDFD(opCode, regIY);
+                break;
+        }
+
+        if (prefixOpcode == 0x00) {
+            lastFlagQ = flagQ;
+        }
+    }
+
     /* Los tEstados transcurridos se calculan teniendo en cuenta el número de
      * ciclos de máquina reales que se ejecutan. Esa es la única forma de poder
      * simular la contended memory del Spectrum.
      */
     public final void execute(int statesLimit) {
 
-        while (clock.getTstates() < statesLimit) {
+        clock.setLimit(statesLimit);
+
+        while (true) {
+
+            // Una sola comparación por instrucción: el deadline del Clock es lo
+            // que antes llegue de statesLimit o del siguiente evento programado
+            // (los flancos de la cinta), que se atiende aquí mismo.
+            if (clock.getTstates() >= clock.getDeadline()) {
+                if (clock.getTstates() >= statesLimit) {
+                    break;
+                }
+                clock.runEvents();
+                continue;
+            }
+
+            // Un bloque traducido ejecuta una o más instrucciones completas y
+            // vuelve aquí para las comprobaciones del final de la última.
+            if (translator != null && prefixOpcode == 0x00 && !pendingEI && !execDone && !halted) {
+                TranslatedBlock block = translator.getBlock(regPC);
+                if (block != null) {
+                    block.execute(this, clock.getDeadline());
+
+                    if (prefixOpcode != 0x00)
+                        continue;
+
+                    if (activeNMI) {
+                        activeNMI = false;
+                        nmi();
+                        continue;
+                    }
+
+                    if (ffIFF1 && !pendingEI && MemIoImpl.isActiveINT()) {
+                        interruption();
+                    }
+                    continue;
+                }
+            }
+
+            // Con la CPU parada en un HALT no hay nada que decodificar: el bus
+            // adelanta de una vez los M1 que faltan hasta el siguiente evento
+            // y aquí sólo quedan el R y las comprobaciones del final.
+            if (halted && prefixOpcode == 0x00 && !pendingEI && !execDone
+                && !breakpointAt[regPC]) {
+                int count = MemIoImpl.haltCycles(regPC, clock.getDeadline());
+                if (count > 0) {
+                    regR += count;
+                    lastFlagQ = flagQ = false;
+
+                    if (activeNMI) {
+                        activeNMI = false;
+                        nmi();
+                        continue;
+                    }
+
+                    if (ffIFF1 && MemIoImpl.isActiveINT()) {
+                        interruption();
+                    }
+                    continue;
+                }
+            }
 
             int opCode = MemIoImpl.fetchOpcode(regPC);
             regR++;
@@ -1814,6 +2089,11 @@ public class Z80 {
                     System.out.println(String.format("ERROR!: prefixOpcode = %02x, opCode = %02x", prefixOpcode, opCode));
             }
 
+            // Tras un prefijo se vuelve arriba a por el opcode, igual que en
+            // el Z80 real hay un M1 por cada uno: entre ambos pueden vencer
+            // eventos del Clock, y fetchOpcode hace falta por la contención
+            // y el R. Guardar la instrucción ya decodificada no ahorraría
+            // ninguna lectura; los bloques traducidos sí se saltan esto.
             if (prefixOpcode != 0x00)
                 continue;
 
@@ -1845,7 +2125,22 @@ public class Z80 {
         } /* del while */
     }
 
-    private void decodeOpcode(int opCode) {
+    /*
+     * Para que ninguno de los métodos de decodificación se acerque al límite
+     * de 8000 bytecodes del JIT (HugeMethodLimit), el switch principal se
+     * divide por rangos igual que se hizo en su día con DDFDCB. El método
+     * que decide a cuál llamar es tan pequeño que el JIT lo expande en línea.
+     */
+    void decodeOpcode(int opCode) {
+        if (opCode < 0x80) {
+            decodeOpcodeTo7F(opCode);
+        } else {
+            decodeOpcodeToFF(opCode);
+        }
+    }
+
+    // Códigos de instrucción desde el 0x00 hasta el 0x7F
+    private void decodeOpcodeTo7F(int opCode) {
 
         switch (opCode) {
 //            case 0x00:       /* NOP */
@@ -2475,6 +2770,13 @@ public class Z80 {
 //            case 0x7F: {     /* LD A,A */
 //                break;
 //            }
+        } /* del switch( codigo ) */
+    }
+
+    // Códigos de instrucción desde el 0x80 hasta el 0xFF
+    private void decodeOpcodeToFF(int opCode) {
+
+        switch (opCode) {
             case 0x80: {     /* ADD A,B */
                 add(regB);
                 break;
@@ -3161,6 +3463,16 @@ public class Z80 {
         regPC = (regPC + 1) & 0xffff;
         regR++;
 
+        if (opCode < 0x80) {
+            decodeCBto7F(opCode);
+        } else {
+            decodeCBtoFF(opCode);
+        }
+    }
+
+    // Subconjunto de instrucciones 0xCB desde el código 0x00 hasta el 0x7F
+    private void decodeCBto7F(int opCode) {
+
         switch (opCode) {
             case 0x00: {     /* RLC B */
                 regB = rlc(regB);
@@ -3730,6 +4042,13 @@ public class Z80 {
                 bit(0x80, regA);
                 break;
             }
+        }
+    }
+
+    // Subconjunto de instrucciones 0xCB desde el código 0x80 hasta el 0xFF
+    private void decodeCBtoFF(int opCode) {
+
+        switch (opCode) {
             case 0x80: {     /* RES 0,B */
                 regB &= 0xFE;
                 break;
@@ -4311,7 +4630,7 @@ public class Z80 {
      * Naturalmente, en una serie repetida de DDFD no hay que comprobar las
      * interrupciones entre cada prefijo.
      */
-    private int decodeDDFD(int opCode, int regIXY) {
+    int decodeDDFD(int opCode, int regIXY) {
         prefixOpcode = 0;
         switch (opCode) {
             case 0x09: {     /* ADD IX,BC */
@@ -6079,7 +6398,7 @@ public class Z80 {
     }
 
     //Subconjunto de instrucciones 0xED
-    private void decodeED(int opCode) {
+    void decodeED(int opCode) {
         prefixOpcode = 0;
         switch (opCode) {
             case 0x40: {     /* IN B,(C) */
@@ -6383,72 +6702,112 @@ public class Z80 {
                 break;
             }
             case 0xB0: {     /* LDIR */
+                boolean bulk = true;
                 ldi();
-                if ((sz5h3pnFlags & PARITY_MASK) == PARITY_MASK) {
+                while ((sz5h3pnFlags & PARITY_MASK) == PARITY_MASK) {
                     regPC = (regPC - 2) & 0xffff;
                     memptr = regPC + 1;
                     MemIoImpl.addressOnBus((getRegDE() - 1) & 0xffff, 5);
+                    if (bulk) {
+                        bulk = copyBlockBulk(0xB0, true);
+                    }
+                    if (!repeatIteration(0xB0)) {
+                        break;
+                    }
+                    ldi();
                 }
                 break;
             }
             case 0xB1: {     /* CPIR */
                 cpi();
-                if ((sz5h3pnFlags & PARITY_MASK) == PARITY_MASK
+                while ((sz5h3pnFlags & PARITY_MASK) == PARITY_MASK
                     && (sz5h3pnFlags & ZERO_MASK) == 0) {
                     regPC = (regPC - 2) & 0xffff;
                     memptr = regPC + 1;
                     MemIoImpl.addressOnBus((getRegHL() - 1) & 0xffff, 5);
+                    if (!repeatIteration(0xB1)) {
+                        break;
+                    }
+                    cpi();
                 }
                 break;
             }
             case 0xB2: {     /* INIR */
                 ini();
-                if (regB != 0) {
+                while (regB != 0) {
                     regPC = (regPC - 2) & 0xffff;
                     MemIoImpl.addressOnBus((getRegHL() - 1) & 0xffff, 5);
+                    if (!repeatIteration(0xB2)) {
+                        break;
+                    }
+                    ini();
                 }
                 break;
             }
             case 0xB3: {     /* OTIR */
                 outi();
-                if (regB != 0) {
+                while (regB != 0) {
                     regPC = (regPC - 2) & 0xffff;
                     MemIoImpl.addressOnBus(getRegBC(), 5);
+                    if (!repeatIteration(0xB3)) {
+                        break;
+                    }
+                    outi();
                 }
                 break;
             }
             case 0xB8: {     /* LDDR */
+                boolean bulk = true;
                 ldd();
-                if ((sz5h3pnFlags & PARITY_MASK) == PARITY_MASK) {
+                while ((sz5h3pnFlags & PARITY_MASK) == PARITY_MASK) {
                     regPC = (regPC - 2) & 0xffff;
                     memptr = regPC + 1;
                     MemIoImpl.addressOnBus((getRegDE() + 1) & 0xffff, 5);
+                    if (bulk) {
+                        bulk = copyBlockBulk(0xB8, false);
+                    }
+                    if (!repeatIteration(0xB8)) {
+                        break;
+                    }
+                    ldd();
                 }
                 break;
             }
             case 0xB9: {     /* CPDR */
                 cpd();
-                if ((sz5h3pnFlags & PARITY_MASK) == PARITY_MASK
+                while ((sz5h3pnFlags & PARITY_MASK) == PARITY_MASK
                     && (sz5h3pnFlags & ZERO_MASK) == 0) {
                     regPC = (regPC - 2) & 0xffff;
                     memptr = regPC + 1;
                     MemIoImpl.addressOnBus((getRegHL() + 1) & 0xffff, 5);
+                    if (!repeatIteration(0xB9)) {
+                        break;
+                    }
+                    cpd();
                 }
                 break;
             }
             case 0xBA: {     /* INDR */
                 ind();
-                if (regB != 0) {
+                while (regB != 0) {
                     regPC = (regPC - 2) & 0xffff;
                     MemIoImpl.addressOnBus((getRegHL() + 1) & 0xffff, 5);
+                    if (!repeatIteration(0xBA)) {
+                        break;
+                    }
+                    ind();
                 }
                 break;
             }
             case 0xBB: {     /* OTDR */
                 outd();
-                if (regB != 0) {
+                while (regB != 0) {
                     regPC = (regPC - 2) & 0xffff;
                     MemIoImpl.addressOnBus(getRegBC(), 5);
+                    if (!repeatIteration(0xBB)) {
+                        break;
+                    }
+                    outd();
                 }
                 break;
             }
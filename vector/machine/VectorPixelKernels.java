@@ -0,0 +1,248 @@
+/*
+ * VectorPixelKernels: PixelKernels con la Vector API.
+ */
+package machine;
+
+import java.util.concurrent.ConcurrentHashMap;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShuffle;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Los kernels de PixelKernels hechos de SPECIES.length() pixels a la vez, sin
+ * un solo salto por pixel: el negro y los colores de las scanlines se
+ * resuelven con máscaras de lanes. Oscurecer un componente es multiplicar y
+ * desplazar, con constantes que dan lo mismo que las tablas de PixelKernels
+ * para los 256 valores, así que el resultado es idéntico. Lo que no llena un
+ * vector se deja a PixelKernels.
+ *
+ * Necesita Java 16 o posterior y el módulo jdk.incubator.vector, así que se
+ * compila aparte (carpeta vector) y PixelKernels la carga por reflexión.
+ *
+ * @author agent
+ */
+final class VectorPixelKernels extends PixelKernels {
+
+    private static final VectorSpecies<Integer> SPECIES = IntVector.SPECIES_PREFERRED;
+    private static final int LANES = SPECIES.length();
+    // Un byte de la pantalla son 8 pixels, en un vector de 256 bits
+    private static final VectorSpecies<Integer> BYTE_SPECIES = IntVector.SPECIES_256;
+    private static final boolean BYTE_VECTOR = LANES >= BYTE_SPECIES.length();
+    private static final int MAX_ZOOM = 4;
+    // (color * SHADE_MUL_n) >>> SHADE_SHIFT_n == (int) (color * SHADE_n)
+    // para color de 0 a 255. En float sería igual de exacto, pero las
+    // conversiones entre int y float son mucho más lentas.
+    private static final int SHADE_MUL_1 = 205;
+    private static final int SHADE_SHIFT_1 = 8;
+    private static final int SHADE_MUL_2 = 717;
+    private static final int SHADE_SHIFT_2 = 10;
+
+    // Con vectores de LANES pixels ampliados por zoom, el vector k de cada
+    // grupo de zoom toma su lane j del pixel (k * LANES + j) / zoom, y su
+    // máscara es la del pixel (k * LANES + j) % zoom del bloque
+    private static final VectorShuffle<Integer> spread[][] = shuffleTable();
+    private static final VectorShuffle<Integer> phase[][] = shuffleTable();
+    // Para un vector que empieza en el pixel p de un bloque, el lane j toma
+    // el primer pixel de su bloque con firstOf[zoom][p]. Si queda en el
+    // vector anterior, el índice es negativo y rearrange lo toma de ése.
+    private static final VectorShuffle<Integer> firstOf[][] = shuffleTable();
+    // Las máscaras de maskVectors, por el array de cada línea de máscaras
+    // (las de JSpeccyScreen son constantes). Los arrays se comparan por
+    // identidad.
+    private static final ConcurrentHashMap<int[], IntVector[]> maskCache =
+        new ConcurrentHashMap<>();
+    // Los bits de un byte al revés: el bit 7 es el primer pixel
+    private static final long reversed[] = new long[256];
+
+    static {
+        for (int zoom = 2; zoom <= MAX_ZOOM; zoom++) {
+            for (int k = 0; k < zoom; k++) {
+                final int z = zoom, base = k * LANES;
+                spread[zoom][k] = VectorShuffle.fromOp(SPECIES, j -> (base + j) / z);
+                phase[zoom][k] = VectorShuffle.fromOp(SPECIES, j -> (base + j) % z);
+            }
+
+            for (int start = 0; start < zoom; start++) {
+                final int z = zoom, p = start;
+                firstOf[zoom][start] =
+                    VectorShuffle.fromOp(SPECIES, j -> (p + j) / z * z - p);
+            }
+        }
+
+        for (int value = 0; value < 256; value++) {
+            reversed[value] = Integer.reverse(value) >>> 24;
+        }
+    }
+
+    VectorPixelKernels() {
+    }
+
+    // Para cada zoom de 2 a MAX_ZOOM, sitio para zoom shuffles. Java no deja
+    // crear arrays de un tipo genérico, así que se crean con <?> y se
+    // convierten: no puede fallar, porque sólo se guardan VectorShuffle<Integer>.
+    @SuppressWarnings("unchecked")
+    private static VectorShuffle<Integer>[][] shuffleTable() {
+        VectorShuffle<Integer> table[][] =
+            (VectorShuffle<Integer>[][]) new VectorShuffle<?>[MAX_ZOOM + 1][];
+        for (int zoom = 2; zoom <= MAX_ZOOM; zoom++) {
+            table[zoom] = (VectorShuffle<Integer>[]) new VectorShuffle<?>[zoom];
+        }
+        return table;
+    }
+
+    @Override
+    public String getName() {
+        return "vector " + SPECIES.vectorBitSize();
+    }
+
+    @Override
+    public void expandByte(int dst[], int offset, int scrByte, int ink, int paper) {
+        if (!BYTE_VECTOR) {
+            super.expandByte(dst, offset, scrByte, ink, paper);
+            return;
+        }
+
+        IntVector.broadcast(BYTE_SPECIES, paper)
+            .blend(ink, VectorMask.fromLong(BYTE_SPECIES, reversed[scrByte & 0xff]))
+            .intoArray(dst, offset);
+    }
+
+    @Override
+    public void zoomLine(int src[], int srcPos, int dst[], int dstPos, int count,
+            int zoom, int shade, int mask[]) {
+        if (zoom < 2 || zoom > MAX_ZOOM) {
+            super.zoomLine(src, srcPos, dst, dstPos, count, zoom, shade, mask);
+            return;
+        }
+
+        VectorShuffle<Integer> shuffles[] = spread[zoom];
+        IntVector masks[] = mask != null ? maskVectors(mask, zoom) : null;
+
+        int done = SPECIES.loopBound(count);
+        for (int pixel = 0; pixel < done; pixel += LANES) {
+            IntVector rgb = IntVector.fromArray(SPECIES, src, srcPos + pixel);
+            if (shade == SHADE_LINE_1) {
+                rgb = shade(rgb, SHADE_MUL_1, SHADE_SHIFT_1);
+            } else if (shade == SHADE_LINE_2) {
+                rgb = shade(rgb, SHADE_MUL_2, SHADE_SHIFT_2);
+            }
+
+            int pos = dstPos + pixel * zoom;
+            for (int k = 0; k < zoom; k++, pos += LANES) {
+                IntVector out = rgb.rearrange(shuffles[k]);
+                if (masks != null) {
+                    out = out.and(masks[k]);
+                }
+                out.intoArray(dst, pos);
+            }
+        }
+
+        super.zoomLine(src, srcPos + done, dst, dstPos + done * zoom, count - done,
+            zoom, shade, mask);
+    }
+
+    /*
+     * Cada lane toma el primer pixel de su bloque, que puede estar en el
+     * vector anterior. Por eso la línea se recorre de derecha a izquierda:
+     * lo que queda a la izquierda aún no se ha escrito.
+     */
+    @Override
+    public void shadeBlocks(int buf[], int pos, int nextPos, int blocks, int zoom) {
+        if (zoom < 2 || zoom > MAX_ZOOM) {
+            super.shadeBlocks(buf, pos, nextPos, blocks, zoom);
+            return;
+        }
+
+        boolean next = nextPos >= 0;
+        int length = blocks * zoom;
+        int done = SPECIES.loopBound(length);
+
+        // El final que no llena un vector, pixel a pixel y también hacia atrás
+        for (int pixel = length - 1; pixel >= done; pixel--) {
+            int rgb = buf[pos + pixel - pixel % zoom];
+            if (rgb != 0) {
+                buf[pos + pixel] = shade(rgb, SHADE_MUL_1, SHADE_SHIFT_1);
+                if (next) {
+                    buf[nextPos + pixel] = shade(rgb, SHADE_MUL_2, SHADE_SHIFT_2);
+                }
+            }
+        }
+
+        VectorShuffle<Integer> firsts[] = firstOf[zoom];
+        for (int pixel = done - LANES; pixel >= 0; pixel -= LANES) {
+            IntVector line = IntVector.fromArray(SPECIES, buf, pos + pixel);
+            int start = pixel % zoom;
+            IntVector rgb = start == 0 ? line.rearrange(firsts[0])
+                : line.rearrange(firsts[start],
+                    IntVector.fromArray(SPECIES, buf, pos + pixel - LANES));
+            VectorMask<Integer> lit = rgb.compare(VectorOperators.NE, 0);
+
+            line.blend(shade(rgb, SHADE_MUL_1, SHADE_SHIFT_1), lit).intoArray(buf, pos + pixel);
+            if (next) {
+                IntVector.fromArray(SPECIES, buf, nextPos + pixel)
+                    .blend(shade(rgb, SHADE_MUL_2, SHADE_SHIFT_2), lit)
+                    .intoArray(buf, nextPos + pixel);
+            }
+        }
+    }
+
+    @Override
+    public void maskLine(int buf[], int pos, int blocks, int zoom, int mask[]) {
+        if (zoom < 2 || zoom > MAX_ZOOM) {
+            super.maskLine(buf, pos, blocks, zoom, mask);
+            return;
+        }
+
+        IntVector masks[] = maskVectors(mask, zoom);
+        int length = blocks * zoom;
+        int done = SPECIES.loopBound(length);
+        for (int pixel = 0, k = 0; pixel < done; pixel += LANES) {
+            IntVector.fromArray(SPECIES, buf, pos + pixel).and(masks[k]).intoArray(buf, pos + pixel);
+            if (++k == zoom) {
+                k = 0;
+            }
+        }
+
+        // done es múltiplo de LANES, pero puede no serlo de zoom
+        for (int pixel = done; pixel < length; pixel++) {
+            buf[pos + pixel] &= mask[pixel % zoom];
+        }
+    }
+
+    // Las zoom máscaras de un bloque, repetidas como las pide cada vector
+    private static IntVector[] maskVectors(int mask[], int zoom) {
+        IntVector masks[] = maskCache.get(mask);
+        if (masks == null || masks.length != zoom) {
+            masks = buildMaskVectors(mask, zoom);
+            maskCache.put(mask, masks);
+        }
+        return masks;
+    }
+
+    private static IntVector[] buildMaskVectors(int mask[], int zoom) {
+        IntVector row = IntVector.fromArray(SPECIES, mask, 0, SPECIES.indexInRange(0, zoom));
+        IntVector masks[] = new IntVector[zoom];
+        for (int k = 0; k < zoom; k++) {
+            masks[k] = row.rearrange(phase[zoom][k]);
+        }
+        return masks;
+    }
+
+    // Cada componente por mul y desplazado shift bits a la derecha
+    private static IntVector shade(IntVector rgb, int mul, int shift) {
+        IntVector red = rgb.lanewise(VectorOperators.LSHR, 16).and(0xff)
+            .mul(mul).lanewise(VectorOperators.LSHR, shift);
+        IntVector green = rgb.lanewise(VectorOperators.LSHR, 8).and(0xff)
+            .mul(mul).lanewise(VectorOperators.LSHR, shift);
+        IntVector blue = rgb.and(0xff).mul(mul).lanewise(VectorOperators.LSHR, shift);
+        return red.lanewise(VectorOperators.LSHL, 16)
+            .or(green.lanewise(VectorOperators.LSHL, 8)).or(blue);
+    }
+
+    private static int shade(int rgb, int mul, int shift) {
+        return ((rgb >>> 16 & 0xff) * mul >>> shift << 16)
+            | ((rgb >>> 8 & 0xff) * mul >>> shift << 8) | (rgb & 0xff) * mul >>> shift;
+    }
+}